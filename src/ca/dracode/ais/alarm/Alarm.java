@@ -26,14 +26,18 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 
 import ca.dracode.ais.service.IndexService;
 
 public class Alarm extends BroadcastReceiver {
+    /** The action of the alarm that checks whether the index can be maintained */
+    private static final String ACTION_MAINTAIN = "ca.dracode.ais.alarm.MAINTAIN";
 
     /**
-     * Starts the wakeup that calls for the device to be re-indexed after a certain period
+     * Starts the wakeup that calls for the device to be re-indexed after a certain period, and
+     * the one that merges the index while the device is idle and charging
      * @param context
      */
     public static void SetAlarm(Context context) {
@@ -42,26 +46,42 @@ public class Alarm extends BroadcastReceiver {
         PendingIntent pi = PendingIntent.getBroadcast(context, 0, i, 0);
         // sets the alarm to repeat every 10 minutes
         // TODO - Make alarm time change according to a user preference
-        if(am != null)
+        if(am != null) {
             am.setRepeating(AlarmManager.RTC_WAKEUP, System.currentTimeMillis(),
                     10 * 60000, pi);
+            // Inexact, so the system can batch it with other wakeups
+            am.setInexactRepeating(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                    SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_HOUR,
+                    AlarmManager.INTERVAL_HOUR, getMaintenanceIntent(context));
+        }
     }
 
     /**
-     * Cancels the alerm started in SetAlarm(context) if it has been set
+     * Cancels the alarms started in SetAlarm(context) if they have been set
      * @param context
      */
     public static void CancelAlarm(Context context) {
         Intent i = new Intent(context, Alarm.class);
         PendingIntent pi = PendingIntent.getBroadcast(context, 0, i, 0);
-        AlarmManager am = (AlarmManager) context.getSystemService("Context.ALARM_SERVICE");
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
         if(am != null) {
             am.cancel(pi);
+            am.cancel(getMaintenanceIntent(context));
         }
     }
 
+    private static PendingIntent getMaintenanceIntent(Context context) {
+        Intent i = new Intent(context, Alarm.class);
+        i.setAction(ACTION_MAINTAIN);
+        return PendingIntent.getBroadcast(context, 0, i, 0);
+    }
+
     /**
      * Starts the indexer if it is not already running
+     * <p>
+     *     The maintenance alarm only starts it if the device is idle and charging; a running
+     *     indexer already maintains the index when it closes
+     * </p>
      * @param context
      * @param intent
      */
@@ -71,7 +91,14 @@ public class Alarm extends BroadcastReceiver {
 
         if(!this.isMyServiceRunning(context) && prefs.getBoolean("enabled", true)) {
             Intent serviceIntent = new Intent(context, IndexService.class);
-            serviceIntent.putExtra("crawl", true);
+            if(ACTION_MAINTAIN.equals(intent.getAction())) {
+                if(!IndexService.isIdleAndCharging(context)) {
+                    return;
+                }
+                serviceIntent.putExtra("maintain", true);
+            } else {
+                serviceIntent.putExtra("crawl", true);
+            }
             context.startService(serviceIntent);
         }
     }
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2014 Dracode Software.
+ *
+ * This file is part of AIS.
+ *
+ * AIS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * AIS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AIS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.dracode.ais.indexer;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.LowerCaseTokenizer;
+import org.apache.lucene.analysis.ngram.EdgeNGramTokenFilter;
+import org.apache.lucene.analysis.reverse.ReverseStringFilter;
+import org.apache.lucene.util.Version;
+
+import java.io.Reader;
+
+/**
+ * AffixAnalyzer.java
+ *
+ * Tokenizes text the same way as SimpleAnalyzer and then emits every prefix, or every reversed
+ * suffix, of each token up to MAX_GRAM characters long. Fields analyzed this way let prefix and
+ * suffix searches be answered with a single term lookup instead of a WildcardQuery that has to
+ * enumerate the term dictionary.
+ */
+public final class AffixAnalyzer extends Analyzer {
+    /** The length of the longest prefix or suffix that is indexed */
+    public static final int MAX_GRAM = 15;
+    private final boolean suffix;
+
+    /**
+     * @param suffix true to index the reversed suffixes of each token; false to index its prefixes
+     */
+    public AffixAnalyzer(boolean suffix) {
+        this.suffix = suffix;
+    }
+
+    @Override
+    protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
+        Tokenizer source = new LowerCaseTokenizer(Version.LUCENE_47, reader);
+        TokenStream result = source;
+        if(suffix) {
+            result = new ReverseStringFilter(Version.LUCENE_47, result);
+        }
+        result = new EdgeNGramTokenFilter(Version.LUCENE_47, result, 1, MAX_GRAM);
+        return new TokenStreamComponents(source, result);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2014 Dracode Software.
+ *
+ * This file is part of AIS.
+ *
+ * AIS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * AIS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AIS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.dracode.ais.indexer;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilteredDocIdSet;
+import org.apache.lucene.util.Bits;
+
+import java.io.IOException;
+
+/**
+ * CancellableFilter.java
+ *
+ * Wraps a Filter so that a search using it stops as soon as its Token is cancelled. The token is
+ * checked for every Document the search considers, so even searches that match most of the index
+ * stop within a few Documents of being cancelled. Searches stop by throwing Cancelled, which may
+ * reach the caller wrapped in another RuntimeException when the search runs on several threads.
+ */
+class CancellableFilter extends Filter {
+    private final Filter filter;
+    private final Token token;
+
+    /**
+     * Cancellation handle for a single search
+     */
+    static class Token {
+        private volatile boolean cancelled = false;
+
+        public void cancel() {
+            this.cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * @throws Cancelled if the search has been cancelled
+         */
+        public void check() {
+            if(cancelled) {
+                throw new Cancelled();
+            }
+        }
+    }
+
+    /**
+     * Thrown from inside a search when its Token is cancelled
+     */
+    static class Cancelled extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Cancelled() {
+            super("Search was cancelled");
+        }
+    }
+
+    /**
+     * @param filter The filter to wrap; null to accept every Document
+     * @param token The token that cancels searches using this filter
+     */
+    public CancellableFilter(Filter filter, Token token) {
+        this.filter = filter;
+        this.token = token;
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+        token.check();
+        DocIdSet set = filter != null ? filter.getDocIdSet(context, acceptDocs)
+                : new AllDocIdSet(context.reader().maxDoc(), acceptDocs);
+        if(set == null) {
+            return null;
+        }
+        return new FilteredDocIdSet(set) {
+            @Override
+            protected boolean match(int docid) {
+                token.check();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Every Document of a segment that is accepted by acceptDocs
+     */
+    private static class AllDocIdSet extends DocIdSet {
+        private final int maxDoc;
+        private final Bits acceptDocs;
+
+        AllDocIdSet(int maxDoc, Bits acceptDocs) {
+            this.maxDoc = maxDoc;
+            this.acceptDocs = acceptDocs;
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            return new DocIdSetIterator() {
+                private int doc = -1;
+
+                @Override
+                public int docID() {
+                    return doc;
+                }
+
+                @Override
+                public int nextDoc() {
+                    return this.advance(doc + 1);
+                }
+
+                @Override
+                public int advance(int target) {
+                    doc = target;
+                    while(doc < maxDoc && acceptDocs != null && !acceptDocs.get(doc)) {
+                        doc++;
+                    }
+                    if(doc >= maxDoc) {
+                        doc = NO_MORE_DOCS;
+                    }
+                    return doc;
+                }
+
+                @Override
+                public long cost() {
+                    return maxDoc;
+                }
+            };
+        }
+
+        @Override
+        public Bits bits() {
+            return acceptDocs != null ? acceptDocs : new Bits.MatchAllBits(maxDoc);
+        }
+
+        @Override
+        public boolean isCacheable() {
+            return true;
+        }
+    }
+}
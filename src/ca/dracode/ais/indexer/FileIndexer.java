@@ -23,7 +23,41 @@ package ca.dracode.ais.indexer;
  * FileIndexer.java
  * 
  * Contains functions for building the lucene index.
- *  TODO - Evaluate the usefulness of ForceMerging as it increases total indexing time by about 17%
+ *
+ * Segments are merged in the background by a TieredMergePolicy. The index is never force merged
+ * when it is closed as that rewrites the whole index and increases total indexing time by about
+ * 17%; maintain() does so only when the index has become fragmented and should only be called
+ * while the device is idle.
+ *
+ * Commits are grouped rather than issued for every file. A commit happens once commitDocs
+ * documents, commitBytes of buffered RAM or commitInterval milliseconds have accumulated since
+ * the last commit, whichever comes first, and always when the indexer is closed.
+ *
+ * Durability: documents written since the last commit are not visible to readers opened from
+ * disk and are lost if the process dies before the next commit. The index itself is never left
+ * inconsistent; it simply reverts to the last commit point. Since a file's metadata Document is
+ * written after its pages, a lost file has no committed metadata and is re-indexed on the next
+ * crawl.
+ *
+ * When the index is empty, a crawl can run in bulk load mode. Documents are then written with
+ * addDocument into a fresh side index opened with OpenMode.CREATE, skipping the lookups and
+ * deletes that updateDocument needs. The side index is added to the main index in a single
+ * commit once the crawl is finished, so searchers never see a partially built index. It is
+ * committed on the same group commit policy in the meantime, so a bulk load that was killed is
+ * resumed by the next crawl rather than started over: the files in the side index are added to
+ * the catalog and are not written again. A resumed side index is written with updateDocument, as
+ * it may hold the pages of a file whose metadata Document was never committed.
+ *
+ * Whether a file is already indexed is answered by an IndexCatalog that is loaded from the index
+ * when the indexer is created and updated whenever a file is written or removed.
+ *
+ * The version of the Document layout is stored in the commit data of the index under
+ * FORMAT_KEY. When an index written with an older layout is opened, every file in the catalog is
+ * treated as out of date so that the next crawl rewrites it, and the version is only raised once
+ * a crawl has been completed.
+ *
+ * While the indexer is open, FileSearchers in the same process search near-real-time readers
+ * taken from its IndexWriter through the SearcherProvider, which is refreshed after every commit.
  */
 
 import android.content.Context;
@@ -32,33 +66,118 @@ import android.util.Log;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.core.SimpleAnalyzer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
 import org.apache.lucene.document.IntField;
 import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TieredMergePolicy;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.Version;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class FileIndexer {
     private static final String TAG = "ca.dracode.ais.indexer.FileIndexer";
+    /** Default number of documents written between commits */
+    public static final int DEFAULT_COMMIT_DOCS = 1000;
+    /** Default amount of buffered RAM, in bytes, that triggers a commit */
+    public static final long DEFAULT_COMMIT_BYTES = 16 * 1024 * 1024;
+    /** The size of the writer's RAM buffer as a multiple of the bytes that trigger a commit */
+    private static final int RAM_BUFFER_RATIO = 2;
+    /** Default maximum time, in milliseconds, between commits */
+    public static final long DEFAULT_COMMIT_INTERVAL = 30 * 1000;
+    /** Number of segments above which maintain() merges the index */
+    private static final int MAX_SEGMENTS = 30;
+    /** Ratio of deleted Documents above which maintain() expunges deletes */
+    private static final double MAX_DELETED_RATIO = 0.25;
+    /** Commit data key that stores the version of the Document layout */
+    public static final String FORMAT_KEY = "ais.format";
+    /**
+     * The current version of the Document layout
+     * <p>
+     *     1 - Original layout
+     *     2 - Adds DocValues for path, page and modified
+     *     3 - Adds the text_prefix and text_suffix fields
+     *     4 - Adds term vectors with positions and offsets to the text field
+     *     5 - Adds the path_tree field
+     * </p>
+     */
+    public static final int FORMAT_VERSION = 5;
+    /** The first Document layout version that has the text_prefix and text_suffix fields */
+    public static final int FORMAT_AFFIXES = 3;
+    /** The first Document layout version that has term vectors for the text field */
+    public static final int FORMAT_VECTORS = 4;
+    /** The first Document layout version that has the path_tree field */
+    public static final int FORMAT_PATH_TREE = 5;
+    /**
+     * Stored and indexed like a TextField, with term vectors so that matches can be highlighted
+     * from their offsets without analyzing the text again
+     */
+    private static final FieldType TEXT_TYPE = new FieldType(TextField.TYPE_STORED);
+    /**
+     * Indexed only so that terms can be matched; affix fields and path_tree are never scored or
+     * highlighted
+     */
+    private static final FieldType MATCH_TYPE = new FieldType();
+
+    static {
+        MATCH_TYPE.setIndexed(true);
+        MATCH_TYPE.setTokenized(true);
+        MATCH_TYPE.setOmitNorms(true);
+        MATCH_TYPE.setIndexOptions(FieldInfo.IndexOptions.DOCS_ONLY);
+        MATCH_TYPE.freeze();
+        TEXT_TYPE.setStoreTermVectors(true);
+        TEXT_TYPE.setStoreTermVectorPositions(true);
+        TEXT_TYPE.setStoreTermVectorOffsets(true);
+        TEXT_TYPE.freeze();
+    }
     private IndexWriter writer;
-    private FileSearcher searcher;
+    private IndexWriter bulkWriter;
+    /** Gives FileSearchers in this process readers from the writer; null if they don't share it */
+    private SearcherProvider provider;
+    private final IndexCatalog catalog = new IndexCatalog();
+    private final Set<String> bulkFiles = new HashSet<String>();
+    private int commitDocs = DEFAULT_COMMIT_DOCS;
+    private long commitBytes = DEFAULT_COMMIT_BYTES;
+    private long commitInterval = DEFAULT_COMMIT_INTERVAL;
+    private int pendingDocs = 0;
+    private long lastCommit;
+    private int threads = 1;
+    private boolean upgrading = false;
 
     public FileIndexer(Context c) {
+        this(c, 1);
+    }
+
+    /**
+     * Creates an indexer that can be used by several threads at once
+     * @param c The context that created the indexer
+     * @param threads The number of threads that will write to the indexer concurrently
+     */
+    public FileIndexer(Context c, int threads) {
         super();
-        this.searcher = new FileSearcher(c);
-        Directory dir;
+        this.threads = Math.max(threads, 1);
         try {
             File lock = new File(FileIndexer.getRootStorageDir() + "/write.lock");
             if(lock.exists()) {
@@ -67,18 +186,180 @@ public class FileIndexer {
                         "WARNING, Index may be corrupted");
                 if(lock.exists()) Log.e(TAG, "What?? Lock didn't delete");
             }
-            dir = FSDirectory.open(new File(FileIndexer.getRootStorageDir()));
-            Analyzer analyzer = new SimpleAnalyzer(Version.LUCENE_47);
-            IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_47,
-                    analyzer);
-            iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
-            this.writer = new IndexWriter(dir, iwc);
-            this.writer.commit();
+            this.open(FSDirectory.open(new File(FileIndexer.getRootStorageDir())));
+            this.provider = SearcherProvider.get();
+            if(provider != null) {
+                provider.setWriter(writer);
+            }
         } catch(IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Creates an indexer whose writer is not shared with the FileSearchers in this process
+     * @param dir The directory that stores the index
+     * @param threads The number of threads that will write to the indexer concurrently
+     * @throws IOException
+     */
+    FileIndexer(Directory dir, int threads) throws IOException {
+        super();
+        this.threads = Math.max(threads, 1);
+        this.open(dir);
+    }
+
+    /**
+     * Opens the main writer and loads the catalog from the committed index
+     * @param dir The directory that stores the index
+     * @throws IOException
+     */
+    private void open(Directory dir) throws IOException {
+        this.writer = new IndexWriter(dir, this.createConfig(OpenMode.CREATE_OR_APPEND));
+        int format = getFormatVersion(writer.getCommitData());
+        if(writer.numDocs() == 0) {
+            setFormatVersion(writer);
+        } else if(format < FORMAT_VERSION) {
+            Log.i(TAG, "Index format " + format + " is out of date, upgrading to "
+                    + FORMAT_VERSION);
+            this.upgrading = true;
+        }
+        this.writer.commit();
+        this.lastCommit = System.currentTimeMillis();
+        DirectoryReader reader = DirectoryReader.open(dir);
+        try {
+            this.catalog.load(reader, this.upgrading);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Makes the changes written so far visible to FileSearchers and suggestions in this process
+     */
+    private void refreshSearchers() {
+        if(provider != null) {
+            provider.refresh();
+            Suggester suggester = Suggester.get();
+            if(suggester != null) {
+                suggester.update();
+            }
+        }
+    }
+
+    /**
+     * Creates the analyzer for every field written by Build
+     * @return the analyzer for Documents in the index
+     */
+    private static Analyzer createAnalyzer() {
+        HashMap<String, Analyzer> fieldAnalyzers = new HashMap<String, Analyzer>();
+        fieldAnalyzers.put("text_prefix", new AffixAnalyzer(false));
+        fieldAnalyzers.put("text_suffix", new AffixAnalyzer(true));
+        fieldAnalyzers.put("path_tree", new PathAnalyzer());
+        return new PerFieldAnalyzerWrapper(new SimpleAnalyzer(Version.LUCENE_47),
+                fieldAnalyzers);
+    }
+
+    /**
+     * Creates the configuration for a small index that is only kept in memory, e.g. a copy of
+     * a single file's pages
+     * <p>
+     *     Documents must be written with Build, and the index marked with setFormatVersion
+     *     before it is committed
+     * </p>
+     * @return the configuration for a new IndexWriter
+     */
+    public static IndexWriterConfig createMemoryConfig() {
+        IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_47, createAnalyzer());
+        iwc.setOpenMode(OpenMode.CREATE);
+        return iwc;
+    }
+
+    /**
+     * Marks an index as using the current Document layout from its next commit onwards
+     * @param writer The writer of the index
+     */
+    public static void setFormatVersion(IndexWriter writer) {
+        HashMap<String, String> commitData = new HashMap<String, String>(writer.getCommitData());
+        commitData.put(FORMAT_KEY, Integer.toString(FORMAT_VERSION));
+        writer.setCommitData(commitData);
+    }
+
+    /**
+     * Gets the version of the Document layout from the commit data of an index
+     * @param commitData The commit data of the index
+     * @return the version of the Document layout
+     */
+    public static int getFormatVersion(Map<String, String> commitData) {
+        String format = commitData != null ? commitData.get(FORMAT_KEY) : null;
+        if(format == null) {
+            return 1;
+        }
+        try {
+            return Integer.parseInt(format);
+        } catch(NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * Tells the indexer that a crawl of the whole device has been completed
+     * <p>
+     *     Every file in an index with an outdated Document layout has been rewritten at this
+     *     point, so the index is marked as using the current layout
+     * </p>
+     */
+    public synchronized void crawlFinished() {
+        if(upgrading && writer != null) {
+            setFormatVersion(writer);
+            this.commit();
+            this.upgrading = false;
+            Log.i(TAG, "Upgraded index to format " + FORMAT_VERSION);
+        }
+    }
+
+    /**
+     * Creates the configuration used by the index writers
+     * @param mode The OpenMode of the writer
+     * @return the IndexWriterConfig for a new writer
+     */
+    private IndexWriterConfig createConfig(OpenMode mode) {
+        IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_47,
+                createAnalyzer());
+        iwc.setOpenMode(mode);
+        // Each indexing thread gets its own in-memory segment so that analysis isn't serialized
+        iwc.setMaxThreadStates(threads);
+        TieredMergePolicy mergePolicy = new TieredMergePolicy();
+        mergePolicy.setSegmentsPerTier(10);
+        mergePolicy.setMaxMergeAtOnce(10);
+        mergePolicy.setMaxMergedSegmentMB(1024);
+        // Favours merges that reclaim deletes left behind by updateDocument
+        mergePolicy.setReclaimDeletesWeight(3.0);
+        iwc.setMergePolicy(mergePolicy);
+        // A single merge thread keeps merging from competing with the indexing threads and
+        // the slow external storage
+        ConcurrentMergeScheduler mergeScheduler = new ConcurrentMergeScheduler();
+        mergeScheduler.setMaxMergesAndThreads(2, 1);
+        iwc.setMergeScheduler(mergeScheduler);
+        iwc.setRAMBufferSizeMB(getRAMBufferSizeMB(commitBytes));
+        return iwc;
+    }
+
+    /**
+     * Gets the size of the writer's RAM buffer for a commit policy
+     * <p>
+     *     The buffer is larger than commitBytes, so the commit policy sees the buffered bytes
+     *     reach commitBytes before the writer flushes them on its own. The writer still flushes
+     *     if commits are held back, e.g. in bulk load mode.
+     * </p>
+     * @param commitBytes The amount of buffered RAM, in bytes, that triggers a commit; 0 for the
+     *                    default
+     * @return the size of the RAM buffer in MB
+     */
+    private static double getRAMBufferSizeMB(long commitBytes) {
+        return (commitBytes > 0 ? commitBytes : DEFAULT_COMMIT_BYTES) * RAM_BUFFER_RATIO
+                / (1024.0 * 1024.0);
+    }
+
     /**
      * Creates a Document containing contents and metadata for a specific page of a file
      * @param writer The writer used to save the metadata
@@ -97,11 +378,19 @@ public class FileIndexer {
                         Field.Store.NO));
                 doc.add(new StringField("path", file.getPath(),
                         Field.Store.YES));
+                doc.add(new SortedDocValuesField("path", new BytesRef(file.getPath())));
+                // Used to constrain searches to a directory and its subdirectories
+                doc.add(new Field("path_tree", file.getPath(), MATCH_TYPE));
                 doc.add(new LongField("modified", file.lastModified(),
                         Field.Store.YES));
+                doc.add(new NumericDocValuesField("modified", file.lastModified()));
                 // for(int i = 0; i < contents.size(); i++){
-                doc.add(new TextField("text", "" + contents, Field.Store.YES));
+                doc.add(new Field("text", "" + contents, TEXT_TYPE));
+                // Used to answer the leading and trailing wildcards of boolean searches
+                doc.add(new Field("text_prefix", "" + contents, MATCH_TYPE));
+                doc.add(new Field("text_suffix", "" + contents, MATCH_TYPE));
                 doc.add(new IntField("page", page, Field.Store.YES));
+                doc.add(new NumericDocValuesField("page", page));
                 // }
                 // TODO - Check what OpenMode.CREATE_OR_APPEND does; I think updateDocument should
                 // always be used with CREATE_OR_APPEND, the if part may need to be removed
@@ -119,6 +408,265 @@ public class FileIndexer {
         }
     }
 
+    /**
+     * Sets the group commit policy used by the indexer
+     * <p>
+     *     A commit is made as soon as any one of the limits is reached. A limit that is 0 or
+     *     less is ignored; if all limits are ignored, commits only happen when commit() or
+     *     close() is called.
+     * </p>
+     * @param maxDocs The number of Documents that may be written between commits
+     * @param maxBytes The amount of RAM, in bytes, that the writer may buffer between commits
+     * @param maxInterval The maximum time, in milliseconds, between commits
+     */
+    public synchronized void setCommitPolicy(int maxDocs, long maxBytes, long maxInterval) {
+        this.commitDocs = maxDocs;
+        this.commitBytes = maxBytes;
+        this.commitInterval = maxInterval;
+        if(this.writer != null && maxBytes > 0) {
+            this.writer.getConfig().setRAMBufferSizeMB(getRAMBufferSizeMB(maxBytes));
+        }
+        if(this.bulkWriter != null && maxBytes > 0) {
+            this.bulkWriter.getConfig().setRAMBufferSizeMB(getRAMBufferSizeMB(maxBytes));
+        }
+    }
+
+    /**
+     * Commits all pending changes to the index
+     * <p>
+     *     Used when a caller needs its changes to be durable and visible to readers immediately,
+     *     e.g. when a client explicitly requests that a file be indexed
+     * </p>
+     */
+    public synchronized void commit() {
+        if(writer == null) {
+            return;
+        }
+        try {
+            writer.commit();
+            this.pendingDocs = 0;
+            this.lastCommit = System.currentTimeMillis();
+            this.refreshSearchers();
+        } catch(IOException e) {
+            Log.e(TAG, "Error while committing", e);
+        }
+    }
+
+    /**
+     * Notes that Documents were written and commits if the commit policy requires it
+     * @param docs The number of Documents written since the last call
+     */
+    private synchronized void maybeCommit(int docs) {
+        IndexWriter writer = this.getWriter();
+        if(writer == null) {
+            return;
+        }
+        this.pendingDocs += docs;
+        if((commitDocs > 0 && pendingDocs >= commitDocs)
+                || (commitBytes > 0 && writer.ramSizeInBytes() >= commitBytes)
+                || (commitInterval > 0 && System.currentTimeMillis() - lastCommit >= commitInterval)) {
+            if(writer == bulkWriter) {
+                this.commitBulkLoad();
+            } else {
+                this.commit();
+            }
+        }
+    }
+
+    /**
+     * Commits the side index so that a bulk load that is killed can be resumed
+     * <p>
+     *     Searchers never see the side index, so they are not refreshed
+     * </p>
+     */
+    private synchronized void commitBulkLoad() {
+        try {
+            bulkWriter.commit();
+            this.pendingDocs = 0;
+            this.lastCommit = System.currentTimeMillis();
+        } catch(IOException e) {
+            Log.e(TAG, "Error while committing side index", e);
+        }
+    }
+
+    /**
+     * Starts bulk load mode if the index is empty or resumes a bulk load that didn't finish
+     * <p>
+     *     All Documents written until finishBulkLoad() is called go into a side index that is
+     *     invisible to searchers.
+     * </p>
+     * @return true if the indexer is in bulk load mode; false if the index already contains
+     * Documents or the side index could not be created
+     */
+    public synchronized boolean startBulkLoad() {
+        if(bulkWriter != null) {
+            return true;
+        }
+        if(writer == null || getBulkStorageDir() == null) {
+            return false;
+        }
+        File bulkDir = new File(getBulkStorageDir());
+        if(this.resumeBulkLoad(bulkDir)) {
+            return true;
+        }
+        if(writer.numDocs() != 0) {
+            return false;
+        }
+        try {
+            // Anything left here is from a bulk load that can't be resumed
+            deleteContents(bulkDir);
+            this.bulkFiles.clear();
+            this.bulkWriter = new IndexWriter(FSDirectory.open(bulkDir),
+                    this.createConfig(OpenMode.CREATE));
+            setFormatVersion(bulkWriter);
+            Log.i(TAG, "Index is empty, started bulk load");
+            return true;
+        } catch(IOException e) {
+            Log.e(TAG, "Error while starting bulk load", e);
+            this.bulkWriter = null;
+            return false;
+        }
+    }
+
+    /**
+     * Reopens the side index left behind by a bulk load that was killed before it finished
+     * <p>
+     *     The files in the side index are added to the catalog so that they aren't written
+     *     again. The side index is opened with OpenMode.APPEND, so Documents are written to it
+     *     with updateDocument and the pages of a file that was only partly committed are
+     *     replaced rather than duplicated.
+     * </p>
+     * @param bulkDir The directory of the side index
+     * @return true if the bulk load was resumed; false if there is no side index with the
+     * current Document layout
+     */
+    private boolean resumeBulkLoad(File bulkDir) {
+        Directory dir = null;
+        try {
+            dir = FSDirectory.open(bulkDir);
+            if(!DirectoryReader.indexExists(dir)) {
+                dir.close();
+                return false;
+            }
+            DirectoryReader reader = DirectoryReader.open(dir);
+            try {
+                if(getFormatVersion(reader.getIndexCommit().getUserData()) != FORMAT_VERSION) {
+                    dir.close();
+                    return false;
+                }
+                this.bulkFiles.clear();
+                this.bulkFiles.addAll(catalog.add(reader, false));
+            } finally {
+                reader.close();
+            }
+            this.bulkWriter = new IndexWriter(dir, this.createConfig(OpenMode.APPEND));
+            Log.i(TAG, "Resumed bulk load with " + bulkFiles.size() + " files");
+            return true;
+        } catch(IOException e) {
+            Log.e(TAG, "Error while resuming bulk load", e);
+            for(String path : bulkFiles) {
+                catalog.remove(path);
+            }
+            this.bulkFiles.clear();
+            if(dir != null) {
+                try {
+                    dir.close();
+                } catch(IOException e1) {
+                    Log.e(TAG, "Error ", e1);
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Adds the side index built in bulk load mode to the main index
+     * <p>
+     *     The side index becomes visible in a single commit of the main index. If the side index
+     *     can't be added, it is kept on disk and the files written to it are dropped from the
+     *     catalog so that the next crawl indexes them again.
+     * </p>
+     */
+    public synchronized void finishBulkLoad() {
+        if(bulkWriter == null) {
+            return;
+        }
+        File bulkDir = new File(getBulkStorageDir());
+        boolean added = false;
+        try {
+            Directory dir = bulkWriter.getDirectory();
+            bulkWriter.close();
+            dir.close();
+            dir = FSDirectory.open(bulkDir);
+            try {
+                writer.addIndexes(dir);
+            } finally {
+                dir.close();
+            }
+            writer.commit();
+            added = true;
+            this.pendingDocs = 0;
+            this.lastCommit = System.currentTimeMillis();
+            this.refreshSearchers();
+            Log.i(TAG, "Finished bulk load");
+        } catch(IOException e) {
+            Log.e(TAG, "Error while finishing bulk load", e);
+        } finally {
+            this.bulkWriter = null;
+            if(added) {
+                deleteContents(bulkDir);
+            } else {
+                for(String path : bulkFiles) {
+                    catalog.remove(path);
+                }
+                Log.e(TAG, "Kept side index in " + bulkDir.getAbsolutePath());
+            }
+            bulkFiles.clear();
+        }
+    }
+
+    /**
+     * Gets the writer that new Documents should be written with
+     * @return the bulk load writer while in bulk load mode; the main writer otherwise
+     */
+    private synchronized IndexWriter getWriter() {
+        return bulkWriter != null ? bulkWriter : writer;
+    }
+
+    /**
+     * Gets the writer that new Documents should be written with
+     * @param direct true if the Documents must go into the main index even in bulk load mode
+     * @return the main writer if direct is true or the indexer is not in bulk load mode; the bulk
+     * load writer otherwise
+     */
+    private synchronized IndexWriter getWriter(boolean direct) {
+        return direct ? writer : this.getWriter();
+    }
+
+    /**
+     * Deletes all of the files in a directory
+     * @param dir The directory to be emptied
+     */
+    private static void deleteContents(File dir) {
+        File[] contents = dir.listFiles();
+        if(contents != null) {
+            for(File content : contents) {
+                if(!content.delete()) {
+                    Log.e(TAG, "Could not delete " + content.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the directory that stores the side index built in bulk load mode
+     * @return the path of the directory; null if the index directory is not available
+     */
+    public static String getBulkStorageDir() {
+        String root = getRootStorageDir();
+        return root == null ? null : root + ".bulk";
+    }
+
     /**
      * Gets the directory that stores the Index
      * @return the path of the directory that stores the Index; null if the directory is not
@@ -158,39 +706,32 @@ public class FileIndexer {
 
 
     /**
-     * Checks to see if a file with a matching Document field and value exists in the index
-     * @param field The field to use to check for the file's existence
-     * @param value The identifier for the file; type depends of the given field
+     * Checks to see if a file with a matching id exists in the index
+     * <p>
+     *     Page ids are answered for the file as a whole since a file's pages are always written
+     *     together with its metadata
+     * </p>
+     * @param id The field to use to check for the file's existence; an id without a ':' is
+     *           taken to be the path of the file
      * @param modified The time that the file in the filesystem was last modified; used to
      *                 determine if the file has been modified since it was indexed
      * @return -1 if the index does not exist; 1 if the index exists but is out of date; 0 if the
      * index exists and is up to date
      * @throws IOException
      */
-    private int checkForIndex(String field, String value, long modified) throws IOException {
-        Document doc = this.searcher.getDocument(field, value);
-        if(doc != null) {
-            if(Long.parseLong(doc.get("modified")) < modified) {
-                return 1;
-            } else {
-                return 0;
-            }
-        } else {
-            return -1;
-        }
+    public int checkForIndex(String id, long modified) throws IOException {
+        int split = id.lastIndexOf(':');
+        return this.catalog.check(split == -1 ? id : id.substring(0, split), modified);
     }
 
     /**
-     * Checks to see if a file with a matching id exists in the index
-     * @param id The field to use to check for the file's existence
-     * @param modified The time that the file in the filesystem was last modified; used to
-     *                 determine if the file has been modified since it was indexed
+     * Checks to see if a file exists in the index and is up to date
+     * @param file The file to check for
      * @return -1 if the index does not exist; 1 if the index exists but is out of date; 0 if the
      * index exists and is up to date
-     * @throws IOException
      */
-    public int checkForIndex(String id, long modified) throws IOException {
-        return this.checkForIndex("id", id, modified);
+    public int checkForIndex(File file) {
+        return this.catalog.check(file.getAbsolutePath(), file.lastModified());
     }
 
     /**
@@ -203,8 +744,15 @@ public class FileIndexer {
      */
     public boolean removeIndex(String path) {
         try {
-            if(this.checkForIndex("path", path, 0) != -1) {
-                this.writer.deleteDocuments(new Term("path", path));
+            if(this.catalog.remove(path)) {
+                Term term = new Term("path", path);
+                synchronized(this) {
+                    if(bulkWriter != null) {
+                        bulkWriter.deleteDocuments(term);
+                        bulkFiles.remove(path);
+                    }
+                }
+                this.writer.deleteDocuments(term);
                 return true;
             }
         } catch(IOException e) {
@@ -220,13 +768,50 @@ public class FileIndexer {
      * @return 0 upon successful index creation; -1 on error
      */
     public int buildIndex(String filename, int pages) {
+        return this.buildIndex(filename, pages, false);
+    }
+
+    /**
+     * Creates the metadata Document for a given file
+     * @param filename The path of the file that the metadata will describe
+     * @param pages The number of pages in the file; -1 if it's contents are not indexed
+     * @param direct true if the Document must go into the main index even in bulk load mode,
+     *               e.g. because a client is waiting to search the file
+     * @return 0 upon successful index creation; -1 on error
+     */
+    public int buildIndex(String filename, int pages, boolean direct) {
+        IndexWriter writer = this.getWriter(direct);
+        try {
+            this.prepareBulkFile(writer, new File(filename));
+        } catch(IOException e) {
+            Log.e(TAG, "Error", e);
+            return -1;
+        }
+        int retval = this.writeMetadata(writer, filename, pages);
+        if(retval == 0) {
+            this.maybeCommit(1);
+        }
+        return retval;
+    }
+
+    /**
+     * Writes the metadata Document for a given file without committing it
+     * @param writer The writer to write the Document with
+     * @param filename The path of the file that the metadata will describe
+     * @param pages The number of pages in the file; -1 if it's contents are not indexed
+     * @return 0 upon successful index creation; -1 on error
+     */
+    private int writeMetadata(IndexWriter writer, String filename, int pages) {
         try {
             //Log.i(TAG, "Writing Metadata");
             Document doc = new Document();
             File file = new File(filename);
             doc.add(new StringField("id", file.getPath() + ":meta", Field.Store.NO));
             doc.add(new LongField("modified", file.lastModified(), Field.Store.YES));
+            doc.add(new NumericDocValuesField("modified", file.lastModified()));
             doc.add(new StringField("path", file.getAbsolutePath(), Field.Store.YES));
+            doc.add(new SortedDocValuesField("path", new BytesRef(file.getAbsolutePath())));
+            doc.add(new Field("path_tree", file.getAbsolutePath(), MATCH_TYPE));
             if(pages != -1) {
                 doc.add(new IntField("pages", pages, Field.Store.YES));
             }
@@ -236,9 +821,11 @@ public class FileIndexer {
                 writer.updateDocument(new Term("id", file.getPath() + ":meta"),
                         doc);
             }
+            this.catalog.put(file.getAbsolutePath(), file.lastModified(), pages);
+            if(writer == bulkWriter) {
+                this.recordBulkFile(file.getAbsolutePath());
+            }
             //Log.i(TAG, "Done creating metadata for file " + filename);
-            // Must only call ForceMerge and Commit once per document as they are very resource heavy operations
-            writer.commit();
         } catch(Exception e) {
             Log.e(TAG, "Error", e);
             return -1;
@@ -246,6 +833,49 @@ public class FileIndexer {
         return 0;
     }
 
+    /**
+     * Records that a file was written to the side index in bulk load mode
+     * @param path The path of the file
+     */
+    private synchronized void recordBulkFile(String path) {
+        bulkFiles.add(path);
+    }
+
+    /**
+     * Records that a file is about to be written in bulk load mode
+     * <p>
+     *     A file lives in only one of the two indexes during a bulk load, so any Documents that
+     *     were already written for it to either index are removed. The bulk load writer uses
+     *     addDocument and would otherwise leave duplicates behind.
+     * </p>
+     * @param writer The writer that the file will be written with
+     * @param file The file that will be written
+     * @return true if the file has to be written in full; false if the catalog decides
+     * @throws IOException
+     */
+    private synchronized boolean prepareBulkFile(IndexWriter writer, File file) throws IOException {
+        if(writer == null || bulkWriter == null) {
+            return false;
+        }
+        String path = file.getAbsolutePath();
+        Term term = new Term("path", path);
+        if(writer == bulkWriter) {
+            if(bulkFiles.contains(path)) {
+                bulkWriter.deleteDocuments(term);
+            } else if(catalog.contains(path)) {
+                // Written to the main index for a client earlier in this bulk load
+                this.writer.deleteDocuments(term);
+            }
+            return true;
+        }
+        if(bulkFiles.remove(path)) {
+            bulkWriter.deleteDocuments(term);
+            catalog.remove(path);
+            return true;
+        }
+        return false;
+    }
+
     /**
      * Creates a metadata Document and page Documents for a given file
      * @param contents The text contents of the file; separated into pages
@@ -254,36 +884,153 @@ public class FileIndexer {
      */
     public int buildIndex(List<String> contents, File file) {
         try {
-            for(int i = 0; i < contents.size(); i++) {
-                if(this.checkForIndex("id", file.getAbsolutePath() + ":" + i, file.lastModified()) != 0) {
-                    FileIndexer.Build(writer, file, i, contents
-                            .get(i));
-                } else {
-                    //Log.i(TAG, "Skipping " + file.getAbsolutePath() + ":" + i
-                    //		+ " Already in index");
-                }
+            boolean write = this.startFile(file);
+            for(int i = 0; i < contents.size() && write; i++) {
+                this.buildPage(file, i, contents.get(i));
             }
-            buildIndex(file.getPath(), contents.size());
+            return this.finishFile(file, contents.size());
         } catch(Exception e) {
             Log.e(TAG, "Error", e);
             return -1;
         }
-        return 0;
+    }
+
+    /**
+     * Prepares to write a file one page at a time
+     * <p>
+     *     Pages are given to buildPage as they are read and finishFile is called once every page
+     *     has been written, so only one page of the file has to be held in memory at once. The
+     *     file is only recorded as indexed by finishFile; if it is never called, the file will be
+     *     indexed again by the next crawl.
+     * </p>
+     * @param file The file that will be added to the index
+     * @return true if the pages of the file need to be written; false if they are already in the
+     * index, in which case only finishFile needs to be called
+     * @throws IOException
+     */
+    public boolean startFile(File file) throws IOException {
+        return this.startFile(file, false);
+    }
+
+    /**
+     * Prepares to write a file one page at a time
+     * @param file The file that will be added to the index
+     * @param direct true if the file must go into the main index even in bulk load mode, e.g.
+     *               because a client is waiting to search it; the same value must be given to
+     *               buildPage and finishFile
+     * @return true if the pages of the file need to be written; false if they are already in the
+     * index, in which case only finishFile needs to be called
+     * @throws IOException
+     */
+    public boolean startFile(File file, boolean direct) throws IOException {
+        IndexWriter writer = this.getWriter(direct);
+        return this.prepareBulkFile(writer, file) || this.checkForIndex(file) != 0;
+    }
+
+    /**
+     * Writes a single page of a file started with startFile
+     * @param file The file that the page belongs to
+     * @param page The index of the page in the file
+     * @param contents The text of the page
+     */
+    public void buildPage(File file, int page, String contents) {
+        this.buildPage(file, page, contents, false);
+    }
+
+    /**
+     * Writes a single page of a file started with startFile
+     * @param file The file that the page belongs to
+     * @param page The index of the page in the file
+     * @param contents The text of the page
+     * @param direct The value given to startFile
+     */
+    public void buildPage(File file, int page, String contents, boolean direct) {
+        FileIndexer.Build(this.getWriter(direct), file, page, contents);
+        this.maybeCommit(1);
+    }
+
+    /**
+     * Writes the metadata Document of a file started with startFile
+     * @param file The file that was added to the index
+     * @param pages The number of pages in the file; -1 if it's contents are not indexed
+     * @return 0 upon successful index creation; -1 otherwise
+     */
+    public int finishFile(File file, int pages) {
+        return this.finishFile(file, pages, false);
+    }
+
+    /**
+     * Writes the metadata Document of a file started with startFile
+     * @param file The file that was added to the index
+     * @param pages The number of pages in the file; -1 if it's contents are not indexed
+     * @param direct The value given to startFile
+     * @return 0 upon successful index creation; -1 otherwise
+     */
+    public int finishFile(File file, int pages, boolean direct) {
+        int retval = this.writeMetadata(this.getWriter(direct), file.getPath(), pages);
+        if(retval == 0) {
+            this.maybeCommit(1);
+        }
+        return retval;
+    }
+
+    /**
+     * Merges the index if it has too many segments or too many deleted Documents
+     * <p>
+     *     Rewrites most or all of the index, so it should only be called while the device is idle
+     *     and charging
+     * </p>
+     * @return true if the index was merged; false otherwise
+     */
+    public synchronized boolean maintain() {
+        if(writer == null || bulkWriter != null) {
+            return false;
+        }
+        try {
+            int segments;
+            double deletedRatio;
+            DirectoryReader reader = DirectoryReader.open(writer, true);
+            try {
+                segments = reader.leaves().size();
+                deletedRatio = reader.maxDoc() == 0 ? 0 :
+                        (double) reader.numDeletedDocs() / reader.maxDoc();
+            } finally {
+                reader.close();
+            }
+            Log.i(TAG, "Index has " + segments + " segments, " + (int) (deletedRatio * 100)
+                    + "% deleted");
+            if(segments > MAX_SEGMENTS) {
+                writer.forceMerge(1);
+            } else if(deletedRatio > MAX_DELETED_RATIO) {
+                writer.forceMergeDeletes();
+            } else {
+                return false;
+            }
+            this.commit();
+            return true;
+        } catch(IOException e) {
+            Log.e(TAG, "Error while maintaining index", e);
+        }
+        return false;
     }
 
     /**
      * Closes the index
      * <p>
-     *     Must be called before the indexer is disposed of
+     *     Must be called before the indexer is disposed of; later calls do nothing
      * </p>
      */
-    public void close() {
+    public synchronized void close() {
+        finishBulkLoad();
         try {
             if(writer != null) {
                 writer.commit();
-                // TODO - Determine how much of a speed increase is gained while searching after ForceMerge
-                writer.forceMerge(1);
+                this.pendingDocs = 0;
+                if(provider != null) {
+                    provider.clearWriter(writer);
+                }
                 writer.close();
+                this.writer = null;
             }
         } catch(IOException e) {
             Log.e(TAG, "Error while closing indexwriter", e);
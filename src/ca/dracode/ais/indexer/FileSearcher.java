@@ -25,36 +25,65 @@ import android.util.Log;
 
 import org.apache.lucene.analysis.core.SimpleAnalyzer;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedDocValues;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.BooleanFilter;
+import org.apache.lucene.queries.TermFilter;
+import org.apache.lucene.queries.TermsFilter;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.CachingWrapperFilter;
 import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FuzzyQuery;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.NumericRangeFilter;
 import org.apache.lucene.search.NumericRangeQuery;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.QueryWrapperFilter;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.WildcardQuery;
 import org.apache.lucene.search.highlight.Highlighter;
 import org.apache.lucene.search.highlight.InvalidTokenOffsetsException;
 import org.apache.lucene.search.highlight.QueryScorer;
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.search.spell.DirectSpellChecker;
+import org.apache.lucene.search.spell.SuggestMode;
+import org.apache.lucene.search.spell.SuggestWord;
+import org.apache.lucene.search.vectorhighlight.FastVectorHighlighter;
+import org.apache.lucene.search.vectorhighlight.FieldQuery;
+import org.apache.lucene.search.vectorhighlight.ScoreOrderFragmentsBuilder;
+import org.apache.lucene.search.vectorhighlight.SimpleFragListBuilder;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.Version;
+import org.apache.lucene.util.automaton.LevenshteinAutomata;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 import ca.dracode.ais.alarm.AutoStart;
 import ca.dracode.ais.indexdata.SearchResult;
@@ -82,25 +111,298 @@ public class FileSearcher {
      * All results will be ordered by relevance.
      */
     public static final int QUERY_STANDARD = 1;
+    /**
+     * Searches for results containing words within a small edit distance of each word of the
+     * search term. Results are ordered by relevance, as with QUERY_STANDARD.
+     */
+    public static final int QUERY_FUZZY = 2;
+    /** Words of at most this many characters must match exactly in fuzzy searches */
+    public static final int FUZZY_EXACT_LENGTH = 2;
+    /** Words of at most this many characters may differ by a single edit in fuzzy searches */
+    public static final int FUZZY_ONE_EDIT_LENGTH = 5;
+    /** The number of leading characters that must match exactly in fuzzy searches */
+    public static final int FUZZY_PREFIX_LENGTH = 1;
+    /** The number of terms that each word of a fuzzy search is expanded to */
+    public static final int FUZZY_MAX_EXPANSIONS = 50;
+    /**
+     * The estimated size, in bytes, of the results kept for searches that are repeated, e.g. while
+     * a user pages back and forth through the results
+     */
+    public static final long MAX_CACHE_BYTES = 1024 * 1024;
+    /**
+     * The time, in milliseconds, that the position after a set of results is kept for the next
+     * set. The snapshot of the index that the search ran against is kept open for as long.
+     */
+    public static final long CURSOR_TIMEOUT = 60000;
+    /** The number of sets of directories whose filters are kept for later searches */
+    public static final int MAX_CACHED_FILTERS = 32;
+    /** The approximate length, in characters, of a highlighted fragment */
+    private static final int FRAGMENT_SIZE = 100;
+    private static final Set<String> PATH_FIELDS = Collections.singleton("path");
+    private static final Set<String> PAGE_FIELDS = new HashSet<String>(
+            Arrays.asList("path", "page"));
+    private static final Set<String> TEXT_FIELDS = new HashSet<String>(
+            Arrays.asList("path", "page", "text"));
 
 
     private final String TAG = "ca.dracode.ais.androidindexer.FileSearcher";
-    private IndexSearcher indexSearcher;
-    private int interrupt = -1;
+    private final SearcherProvider provider;
+    private final ResultCache cache = new ResultCache(MAX_CACHE_BYTES);
+    private final HashMap<String, SearchCursor> cursors = new HashMap<String, SearchCursor>();
+    private final LinkedHashMap<String, Filter> pathFilters =
+            new LinkedHashMap<String, Filter>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Filter> eldest) {
+                    return size() > MAX_CACHED_FILTERS;
+                }
+            };
+    private final HashMap<Integer, List<CancellableFilter.Token>> searches =
+            new HashMap<Integer, List<CancellableFilter.Token>>();
+    private IndexReader formatReader;
+    private int formatVersion;
 
+    /**
+     * Creates a searcher for the index on the device's external storage
+     * <p>
+     *     Uses the searchers shared by the whole process, so results include changes made by a
+     *     FileIndexer in the same process as soon as they are refreshed
+     * </p>
+     * @param c The context that created the searcher
+     */
     public FileSearcher(Context c) {
-        IndexReader indexReader;
-        IndexSearcher indexSearcher = null;
+        this(SearcherProvider.get());
+    }
+
+    /**
+     * Creates a searcher for the index served by the given provider
+     * @param provider The provider of the IndexSearchers used for each search
+     */
+    public FileSearcher(SearcherProvider provider) {
+        this.provider = provider;
+    }
+
+    /**
+     * The position after the last hit returned in a set of results
+     * <p>
+     *     Holds on to the searcher that found the hits so that the next set is collected from the
+     *     same snapshot of the index, which keeps the sets consistent and the hits' Document ids
+     *     valid
+     * </p>
+     */
+    private static class SearchCursor {
+        final IndexSearcher searcher;
+        final int nextSet;
+        ScoreDoc after;
+        long lastUsed;
+
+        SearchCursor(IndexSearcher searcher, int nextSet) {
+            this.searcher = searcher;
+            this.nextSet = nextSet;
+        }
+    }
+
+    /**
+     * Copies the pages of a file into an index that is kept in memory
+     * <p>
+     *     Searches of the file with the returned searcher don't touch the index on external
+     *     storage. The copy is not updated when the file is indexed again.
+     * </p>
+     * @param path The absolute path of the file
+     * @param maxBytes The maximum memory, in bytes, that the copy may use; loading stops as soon
+     *                 as it is exceeded
+     * @return a searcher for the copy that must be closed once it is no longer needed; null if
+     * the file is not in the index or its copy would use more than maxBytes
+     */
+    public FileSearcher loadFile(String path, long maxBytes) {
+        IndexSearcher indexSearcher = this.acquire();
+        if(indexSearcher == null) {
+            return null;
+        }
+        RAMDirectory dir = new RAMDirectory();
+        IndexWriter writer = null;
         try {
-            File indexDirFile = new File(FileIndexer.getRootStorageDir());
-            Directory tmpDir = FSDirectory.open(indexDirFile);
-            indexReader = DirectoryReader.open(tmpDir);
-            indexSearcher = new IndexSearcher(indexReader);
-        } catch(IOException ioe) {
-            Log.e(TAG, "Error", ioe);
+            BooleanQuery qry = new BooleanQuery();
+            qry.add(new TermQuery(new Term("path", path)), BooleanClause.Occur.MUST);
+            // Leaves out the metadata Document
+            qry.add(NumericRangeQuery.newIntRange("page", 0, Integer.MAX_VALUE, true, true),
+                    BooleanClause.Occur.MUST);
+            PageCollector collector = new PageCollector(0, Integer.MAX_VALUE, 0);
+            indexSearcher.search(qry, collector);
+            if(collector.getTotalHits() == 0) {
+                return null;
+            }
+            ScoreDoc[] hits = collector.getHits();
+            writer = new IndexWriter(dir, FileIndexer.createMemoryConfig());
+            File file = new File(path);
+            for(ScoreDoc hit : hits) {
+                Document d = indexSearcher.doc(hit.doc, TEXT_FIELDS);
+                FileIndexer.Build(writer, file, Integer.parseInt(d.get("page")), d.get("text"));
+                // The postings and term vectors of a page take up several times its text
+                if(dir.sizeInBytes() + writer.ramSizeInBytes() > maxBytes) {
+                    Log.i(TAG, "Not loading " + path + " into memory, it is too large");
+                    writer.rollback();
+                    writer = null;
+                    dir.close();
+                    return null;
+                }
+            }
+            FileIndexer.setFormatVersion(writer);
+            writer.close();
+            writer = null;
+            if(dir.sizeInBytes() > maxBytes) {
+                Log.i(TAG, "Not loading " + path + " into memory, it is too large");
+                dir.close();
+                return null;
+            }
+            Log.i(TAG, "Loaded " + hits.length + " pages of " + path + " into memory");
+            return new FileSearcher(new SearcherProvider(dir));
+        } catch(IOException e) {
+            Log.e(TAG, "Error while loading " + path, e);
+            if(writer != null) {
+                try {
+                    writer.rollback();
+                } catch(IOException e1) {
+                    Log.e(TAG, "Error ", e1);
+                }
+            }
+            dir.close();
+            return null;
+        } finally {
+            this.release(indexSearcher);
+        }
+    }
+
+    /**
+     * Gets the memory used by the index that this searcher reads
+     * @return the size of the index in bytes; 0 if the index is not kept in memory
+     */
+    public long getMemoryUsage() {
+        return provider != null ? provider.ramBytesUsed() : 0;
+    }
+
+    /**
+     * Closes a searcher returned by loadFile
+     */
+    public void close() {
+        if(provider != null) {
+            provider.close();
+        }
+        synchronized(cursors) {
+            for(SearchCursor c : cursors.values()) {
+                this.release(c.searcher);
+            }
+            cursors.clear();
+        }
+    }
+
+    /**
+     * Gets a searcher for the current state of the index
+     * @return a searcher that must be given back with release(); null if the index can't be read
+     */
+    private IndexSearcher acquire() {
+        if(provider == null) {
+            Log.e(TAG, "Index is not available");
+            return null;
+        }
+        return provider.acquire();
+    }
+
+    private void release(IndexSearcher indexSearcher) {
+        provider.release(indexSearcher);
+    }
+
+    /**
+     * Gets the version of the Document layout used by the index that a searcher reads
+     * @param indexSearcher The searcher reading the index
+     * @return the version of the Document layout
+     */
+    private synchronized int getFormatVersion(IndexSearcher indexSearcher) {
+        IndexReader reader = indexSearcher.getIndexReader();
+        if(reader != formatReader) {
+            this.formatVersion = 1;
+            if(reader instanceof DirectoryReader) {
+                try {
+                    this.formatVersion = FileIndexer.getFormatVersion(
+                            ((DirectoryReader) reader).getIndexCommit().getUserData());
+                } catch(IOException e) {
+                    Log.e(TAG, "Error ", e);
+                }
+            }
+            this.formatReader = reader;
+        }
+        return formatVersion;
+    }
+
+    /**
+     * Gets the version of the index that a searcher reads
+     * @param indexSearcher The searcher reading the index
+     * @return a number that increases whenever the contents of the index change
+     */
+    private static long getGeneration(IndexSearcher indexSearcher) {
+        IndexReader reader = indexSearcher.getIndexReader();
+        if(reader instanceof DirectoryReader) {
+            return ((DirectoryReader) reader).getVersion();
+        }
+        return 0;
+    }
+
+    /**
+     * Estimates the memory used by a list of strings
+     * @param list The list to measure
+     * @return the estimated size of the list in bytes
+     */
+    private static long sizeOf(List<String> list) {
+        long size = 16 + list.size() * 8;
+        for(String s : list) {
+            size += 40 + s.length() * 2;
+        }
+        return size;
+    }
+
+    /**
+     * Estimates the memory used by a SearchResult
+     * @param result The result to measure
+     * @return the estimated size of the result in bytes
+     */
+    private static long sizeOf(SearchResult result) {
+        if(result == null) {
+            return 0;
+        }
+        long size = 16;
+        for(String name : result.getFileNames()) {
+            size += 40 + name.length() * 2;
+        }
+        for(int i = 0; i < result.size(); i++) {
+            for(List<String> page : result.getResultAtIndex(i).values()) {
+                size += 32 + sizeOf(page);
+            }
         }
+        return size;
+    }
 
-        this.indexSearcher = indexSearcher;
+    /**
+     * Gets the number of searches that were answered with the results of an earlier search
+     * @return the number of cache hits
+     */
+    public long getCacheHits() {
+        return cache.getHits();
+    }
+
+    /**
+     * Gets the number of searches that had to be run against the index
+     * @return the number of cache misses
+     */
+    public long getCacheMisses() {
+        return cache.getMisses();
+    }
+
+    /**
+     * Checks if the index has the text_suffix and text_prefix fields
+     * @param indexSearcher The searcher reading the index
+     * @return true if the fields can be searched; false otherwise
+     */
+    private boolean hasAffixes(IndexSearcher indexSearcher) {
+        return this.getFormatVersion(indexSearcher) >= FileIndexer.FORMAT_AFFIXES;
     }
 
     /**
@@ -111,17 +413,23 @@ public class FileSearcher {
      * @throws IOException
      */
     public Document getDocument(String field, String value) throws IOException {
-        //Log.i(TAG, "Checking for existance of " + value);
-        BooleanQuery qry = new BooleanQuery();
-        qry.add(new TermQuery(new Term(field, value)), BooleanClause.Occur.MUST);
-        if(this.indexSearcher != null) {
+        IndexSearcher indexSearcher = this.acquire();
+        if(indexSearcher == null) {
+            return null;
+        }
+        try {
+            //Log.i(TAG, "Checking for existance of " + value);
+            BooleanQuery qry = new BooleanQuery();
+            qry.add(new TermQuery(new Term(field, value)), BooleanClause.Occur.MUST);
             ScoreDoc[] hits;
             hits = indexSearcher.search(qry, 1).scoreDocs;
             if(hits != null && hits.length > 0) {
                 return indexSearcher.doc(hits[0].doc);
             }
+            return null;
+        } finally {
+            this.release(indexSearcher);
         }
-        return null;
     }
 
     /**
@@ -130,25 +438,33 @@ public class FileSearcher {
      * @return The metadata Document matching id or null if it does not exist
      */
     public Document getMetaFile(String id) {
-        BooleanQuery qry = new BooleanQuery();
-        qry.add(new TermQuery(new Term("id", id + ":meta")),
-                BooleanClause.Occur.MUST);
-        ScoreDoc[] hits = null;
-        try {
-            hits = indexSearcher.search(qry, 1).scoreDocs;
-        } catch(IOException e) {
-            Log.e(TAG, "Error ", e);
-        }
-        if(hits == null || hits.length == 0) {
+        IndexSearcher indexSearcher = this.acquire();
+        if(indexSearcher == null) {
             return null;
         }
-        Document doc = null;
         try {
-            doc = indexSearcher.doc(hits[0].doc);
-        } catch(IOException e) {
-            Log.e(TAG, "Error ", e);
+            BooleanQuery qry = new BooleanQuery();
+            qry.add(new TermQuery(new Term("id", id + ":meta")),
+                    BooleanClause.Occur.MUST);
+            ScoreDoc[] hits = null;
+            try {
+                hits = indexSearcher.search(qry, 1).scoreDocs;
+            } catch(IOException e) {
+                Log.e(TAG, "Error ", e);
+            }
+            if(hits == null || hits.length == 0) {
+                return null;
+            }
+            Document doc = null;
+            try {
+                doc = indexSearcher.doc(hits[0].doc);
+            } catch(IOException e) {
+                Log.e(TAG, "Error ", e);
+            }
+            return doc;
+        } finally {
+            this.release(indexSearcher);
         }
-        return doc;
     }
 
     /**
@@ -166,35 +482,60 @@ public class FileSearcher {
      * @param maxResults The maximum number of results that will be returned
      * @param set The set number, e.g., searching set 0 returns the first n results,
      *            searching set 1 returns the 2nd n results. Set must be positive.
-     * @param type The type of the search, one of QUERY_BOOLEAN or QUERY_STANDARD
+     * @param type The type of the search, one of QUERY_BOOLEAN, QUERY_STANDARD or QUERY_FUZZY
      * @return A list containing all of the paths the searcher found, sorted by relevance
      */
     public ArrayList<String> findName(int id, String term, String field,
                                       List<String> constrainValues,
                                       String constrainField, int maxResults, int set, int type) {
-        if(this.interrupt == id) {
-            this.interrupt = -1;
+        String query = ResultCache.key("name", term, field, constrainValues, constrainField,
+                maxResults, type);
+        SearchCursor cursor = this.takeCursor(id, query, set);
+        IndexSearcher indexSearcher = cursor != null ? cursor.searcher : this.acquire();
+        if(indexSearcher == null) {
             return null;
         }
-        Query qry = this.getQuery(term, field, type);
-        if(qry != null){
-            Filter filter = this.getFilter(constrainField, constrainValues, type, -1, -1);
-            ScoreDoc[] hits = null;
-            try {
-                hits = indexSearcher.search(qry, filter, maxResults + maxResults * set).scoreDocs;
-            } catch(IOException e) {
-                Log.e(TAG, "Error ", e);
+        CancellableFilter.Token token = this.begin(id);
+        try {
+            long generation = getGeneration(indexSearcher);
+            String key = query + set;
+            @SuppressWarnings("unchecked")
+            ArrayList<String> cached = (ArrayList<String>) cache.get(generation, key);
+            if(cached != null) {
+                return new ArrayList<String>(cached);
             }
-            if(this.interrupt == id) {
-                this.interrupt = -1;
-                return null;
+            Query qry = this.getQuery(indexSearcher, term, field, type);
+            if(qry != null){
+                Filter filter = this.getFilter(indexSearcher, constrainField, constrainValues,
+                        type, -1, -1);
+                ScoreDoc[] hits = new ScoreDoc[0];
+                try {
+                    SearchCursor next = new SearchCursor(indexSearcher, set + 1);
+                    boolean expensive = filter == null || type != QUERY_BOOLEAN;
+                    hits = this.searchPage(token, provider.forQuery(indexSearcher, expensive),
+                            cursor, next, qry, filter, null, maxResults, set);
+                    this.putCursor(id, query, next);
+                } catch(IOException e) {
+                    Log.e(TAG, "Error ", e);
+                } catch(RuntimeException e) {
+                    if(!token.isCancelled()) {
+                        throw e;
+                    }
+                }
+                if(token.isCancelled()) {
+                    return null;
+                }
+                ArrayList<String> docs = this.getDocPaths(indexSearcher, hits);
+                Log.i(TAG, "Found instance of term in " + docs.size() + " documents");
+                cache.put(generation, key, new ArrayList<String>(docs), sizeOf(docs));
+                return docs;
+            } else {
+                Log.e(TAG, "Query Type: " + type + " not recognised");
+                return new ArrayList<String>();
             }
-            ArrayList<String> docs = this.getDocPaths(maxResults, set, hits);
-            Log.i(TAG, "Found instance of term in " + docs.size() + " documents");
-            return docs;
-        } else {
-            Log.e(TAG, "Query Type: " + type + " not recognised");
-            return new ArrayList<String>();
+        } finally {
+            this.end(id, token);
+            this.release(indexSearcher);
         }
     }
 
@@ -213,44 +554,65 @@ public class FileSearcher {
      * @param maxResults The maximum number of results that will be returned
      * @param set The set number, e.g., searching set 0 returns the first n results,
      *            searching set 1 returns the 2nd n results. Set must be positive
-     * @param type The type of the search, one of QUERY_BOOLEAN or QUERY_STANDARD
+     * @param type The type of the search, one of QUERY_BOOLEAN, QUERY_STANDARD or QUERY_FUZZY
      * @return A SearchResult containing the results sorted by relevance and page
      */
     public SearchResult findInFiles(int id, String term, String field,
                                      List<String> constrainValues,
                                                                                    String constrainField, int maxResults, int set, int type) {
-        if(this.interrupt == id) {
-            this.interrupt = -1;
+        String query = ResultCache.key("in", term, field, constrainValues, constrainField,
+                maxResults, type);
+        SearchCursor cursor = this.takeCursor(id, query, set);
+        IndexSearcher indexSearcher = cursor != null ? cursor.searcher : this.acquire();
+        if(indexSearcher == null) {
             return null;
         }
-        Query qry = this.getQuery(term, field, type);
-        if(qry != null){
-            //Filter filter = this.getFilter(constrainField, constrainValues, type, -1, -1);
-            ScoreDoc[] hits = null;
-            try {
-                if(type == QUERY_BOOLEAN){
-                    Sort sort = new Sort(new SortField("path", SortField.Type.STRING),
-                            new SortField("page", SortField.Type.INT));
-                    hits = indexSearcher.search(qry, null, maxResults *
-                            set + maxResults, sort).scoreDocs;
-                } else {
-                    hits = indexSearcher.search(qry, null, maxResults *
-                            set + maxResults).scoreDocs;
-                }
-
-            } catch(IOException e) {
-                Log.e(TAG, "Error ", e);
+        CancellableFilter.Token token = this.begin(id);
+        try {
+            long generation = getGeneration(indexSearcher);
+            String key = query + set;
+            SearchResult cached = (SearchResult) cache.get(generation, key);
+            if(cached != null) {
+                return cached;
             }
-            if(this.interrupt == id) {
-                this.interrupt = -1;
+            Query qry = this.getQuery(indexSearcher, term, field, type);
+            if(qry != null){
+                Filter filter = this.getFilter(indexSearcher, constrainField, constrainValues,
+                        type, -1, -1);
+                ScoreDoc[] hits = new ScoreDoc[0];
+                try {
+                    Sort sort = null;
+                    if(type == QUERY_BOOLEAN){
+                        sort = new Sort(new SortField("path", SortField.Type.STRING),
+                                new SortField("page", SortField.Type.INT));
+                    }
+                    SearchCursor next = new SearchCursor(indexSearcher, set + 1);
+                    boolean expensive = filter == null || type != QUERY_BOOLEAN;
+                    hits = this.searchPage(token, provider.forQuery(indexSearcher, expensive),
+                            cursor, next, qry, filter, sort, maxResults, set);
+                    this.putCursor(id, query, next);
+                } catch(IOException e) {
+                    Log.e(TAG, "Error ", e);
+                } catch(RuntimeException e) {
+                    if(!token.isCancelled()) {
+                        throw e;
+                    }
+                }
+                if(token.isCancelled()) {
+                    return null;
+                }
+                Log.i(TAG, "Found instance of term in " + hits.length + " documents");
+                SearchResult result = this.getHighlightedResults(token, indexSearcher, hits,
+                        hits.length, qry, type, term, maxResults);
+                cache.put(generation, key, result, sizeOf(result));
+                return result;
+            } else {
+                Log.e(TAG, "Query Type: " + type + " not recognised");
                 return null;
             }
-            List<Document> docs = this.getDocs(maxResults, set, hits);
-            Log.i(TAG, "Found instance of term in " + docs.size() + " documents");
-            return this.getHighlightedResults(docs, qry, type, term, maxResults);
-        } else {
-            Log.e(TAG, "Query Type: " + type + " not recognised");
-            return null;
+        } finally {
+            this.end(id, token);
+            this.release(indexSearcher);
         }
     }
 
@@ -268,118 +630,231 @@ public class FileSearcher {
      * @param maxResults The maximum number of results that will be returned
      * @param set The set number, e.g., searching set 0 returns the first n results,
      *            searching set 1 returns the 2nd n results. A negative set can be used to search
-     *            backwards from a page.
-     * @param type The type of the search, one of QUERY_BOOLEAN or QUERY_STANDARD
+     *            backwards from a page; set -k returns the first k * n results before the page.
+     * @param type The type of the search, one of QUERY_BOOLEAN, QUERY_STANDARD or QUERY_FUZZY
      * @return A SearchResult containing the results sorted by relevance and page
      */
     public SearchResult findInFile(int id, String term, String field, String constrainValue,
                                                                                   String constrainField, int maxResults, int set, int type,
                                                                                   final int page) {
-
-        Query qry = this.getQuery(term, field, type);
-        Log.i(TAG, "Query: " + term + " " + field + " " + type + " " + constrainValue);
-        if(this.interrupt == id) {
-            this.interrupt = -1;
+        String query = ResultCache.key("file", term, field, constrainValue, constrainField,
+                maxResults, type, page);
+        SearchCursor cursor = this.takeCursor(id, query, set);
+        IndexSearcher indexSearcher = cursor != null ? cursor.searcher : this.acquire();
+        if(indexSearcher == null) {
             return null;
         }
-        if(qry != null){
-            String[] values = {constrainValue};
-            Filter filter;
-            ScoreDoc[] hits = null;
-            try {
-                Log.i(TAG, "Searching...");
-                Sort sort;
-                if(type == QUERY_STANDARD){
-                    sort = new Sort();
-                    filter = this.getFilter(constrainField, Arrays.asList(values), type, page,
-                            Integer.MAX_VALUE);
-                    hits = indexSearcher.search(qry, filter, maxResults * set + maxResults,
-                            sort).scoreDocs;
-                } else {
-                    if(set >= 0) {
-                        sort = new Sort(new SortField("page", SortField.Type.INT));
-                        filter = this.getFilter(constrainField, Arrays.asList(values), type, page,
-                                Integer.MAX_VALUE);
-                        hits = indexSearcher.search(qry, filter, maxResults * set + maxResults,
-                                sort).scoreDocs;
-                        if(hits.length < maxResults) {
-                            filter = this.getFilter(constrainField, Arrays.asList(values), type, 0,
-                                    page - 1);
-                            hits = concat(hits, indexSearcher.search(qry, filter,
-                                    maxResults,
-                                    sort).scoreDocs);
-                        }
+        CancellableFilter.Token token = this.begin(id);
+        try {
+
+            Log.i(TAG, "Query: " + term + " " + field + " " + type + " " + constrainValue);
+            long generation = getGeneration(indexSearcher);
+            String key = query + set;
+            SearchResult cached = (SearchResult) cache.get(generation, key);
+            if(cached != null) {
+                return cached;
+            }
+            Query qry = this.getQuery(indexSearcher, term, field, type);
+            if(qry != null){
+                // A single file is matched exactly, and isn't worth a place in the filter cache
+                Filter paths = new TermFilter(new Term(constrainField, constrainValue));
+                Filter filter;
+                ScoreDoc[] hits = null;
+                try {
+                    Log.i(TAG, "Searching...");
+                    if(type != QUERY_BOOLEAN){
+                        filter = addPageFilter(paths, type, page, Integer.MAX_VALUE);
+                        SearchCursor next = new SearchCursor(indexSearcher, set + 1);
+                        hits = this.searchPage(token, indexSearcher, cursor, next, qry,
+                                filter, null, maxResults, set);
+                        this.putCursor(id, query, next);
                     } else {
-                        sort = new Sort(new SortField("page", SortField.Type.INT, true));
-                        filter = this.getFilter(constrainField, Arrays.asList(values), type, 0,
-                                page - 1);
-                        hits = indexSearcher.search(qry, filter, Integer.MAX_VALUE,
-                                sort).scoreDocs;
-                        if(hits.length < maxResults){
-                            filter = this.getFilter(constrainField, Arrays.asList(values), type, page,
-                                    Integer.MAX_VALUE);
-                            hits = concat(hits, indexSearcher.search(qry, filter,
-                                    maxResults - hits.length,
-                                    sort).scoreDocs);
-                        } else {
-                            ScoreDoc[] tmp = hits;
-                            hits = new ScoreDoc[maxResults * -(set + 1) + maxResults];
-                            System.arraycopy(tmp, 0, hits, 0, maxResults * -(set + 1) + maxResults);
-                        }
+                        // Every matching page of the file is visited in one pass, keeping only
+                        // the set going forwards or backwards from page
+                        filter = new CancellableFilter(paths, token);
+                        PageCollector collector = new PageCollector(page, maxResults, set);
+                        indexSearcher.search(qry, filter, collector);
+                        hits = collector.getHits();
+                    }
+                } catch(IOException e) {
+                    Log.e(TAG, "Error ", e);
+                } catch(RuntimeException e) {
+                    if(!token.isCancelled()) {
+                        throw e;
                     }
                 }
-            } catch(IOException e) {
-                Log.e(TAG, "Error ", e);
-            }
-            if(this.interrupt == id) {
-                this.interrupt = -1;
+                if(token.isCancelled()) {
+                    return null;
+                }
+                if(hits != null) {
+                    Log.i(TAG, "Found instance of term in " + hits.length + " documents");
+                    SearchResult result = this.getHighlightedResults(token, indexSearcher, hits,
+                            hits.length, qry, type, term, maxResults);
+                    cache.put(generation, key, result, sizeOf(result));
+                    return result;
+                }
+            } else {
+                Log.e(TAG, "Query Type: " + type + " not recognised");
                 return null;
             }
-            if(hits != null) {
-                Log.i(TAG, "Found instance of term in " + hits.length + " documents");
-                return this.getHighlightedResults(this.getDocs(maxResults, set, hits), qry,
-                        type,
-                        term, maxResults);
-            }
-        } else {
-            Log.e(TAG, "Query Type: " + type + " not recognised");
             return null;
+        } finally {
+            this.end(id, token);
+            this.release(indexSearcher);
+        }
+    }
+
+    /**
+     * Collects one set of results
+     * <p>
+     *     When a cursor is given, collection continues from the last hit of the previous set
+     *     using searchAfter, so every set costs about the same as the first one; otherwise the
+     *     hits of the preceding sets have to be collected and skipped.
+     * </p>
+     * @param token The token that cancels the search
+     * @param indexSearcher The searcher used for the search; must read the same snapshot as the
+     *                      cursor's searcher if a cursor is given
+     * @param cursor The position after the previous set; may be null
+     * @param next Receives the position after this set if the set is full
+     * @param qry The query to search with
+     * @param filter The filter for the search; may be null
+     * @param sort The order of the hits; null to order them by relevance
+     * @param maxResults The maximum number of results in the set
+     * @param set The set number, e.g., searching set 0 returns the first n results,
+     *            searching set 1 returns the 2nd n results. Set must be positive
+     * @return the hits in the set
+     * @throws IOException
+     */
+    private ScoreDoc[] searchPage(CancellableFilter.Token token, IndexSearcher indexSearcher,
+                                  SearchCursor cursor, SearchCursor next, Query qry,
+                                  Filter filter, Sort sort, int maxResults, int set)
+            throws IOException {
+        if(maxResults <= 0) {
+            return new ScoreDoc[0];
+        }
+        ScoreDoc after = cursor != null ? cursor.after : null;
+        int skip = cursor != null ? 0 : maxResults * set;
+        filter = new CancellableFilter(filter, token);
+        TopDocs docs;
+        if(sort == null) {
+            docs = after == null ? indexSearcher.search(qry, filter, skip + maxResults)
+                    : indexSearcher.searchAfter(after, qry, filter, maxResults);
+        } else {
+            docs = after == null ? indexSearcher.search(qry, filter, skip + maxResults, sort)
+                    : indexSearcher.searchAfter(after, qry, filter, maxResults, sort);
+        }
+        ScoreDoc[] found = docs.scoreDocs;
+        if(skip >= found.length) {
+            return new ScoreDoc[0];
+        }
+        ScoreDoc[] hits = Arrays.copyOfRange(found, skip, found.length);
+        if(hits.length >= maxResults) {
+            next.after = hits[hits.length - 1];
+        }
+        return hits;
+    }
+
+    /**
+     * Takes the cursor left by the previous set of a search
+     * @param id Identifier for the instance of ClientService that spawned the search
+     * @param query The key of the search without the set number
+     * @param set The set that is being searched for
+     * @return the cursor if it is positioned at the start of set; null otherwise. The caller
+     * owns the cursor's reference to its searcher and must release it
+     */
+    private SearchCursor takeCursor(int id, String query, int set) {
+        SearchCursor cursor;
+        ArrayList<SearchCursor> expired = new ArrayList<SearchCursor>();
+        synchronized(cursors) {
+            this.expireCursors(expired);
+            cursor = cursors.remove(id + query);
+        }
+        if(cursor != null && cursor.nextSet != set) {
+            expired.add(cursor);
+            cursor = null;
+        }
+        for(SearchCursor c : expired) {
+            this.release(c.searcher);
+        }
+        return cursor;
+    }
+
+    /**
+     * Keeps the position after a set of results so that the next set can continue from it
+     * <p>
+     *     The cursor takes its own reference to the searcher, so the caller still releases the
+     *     searcher once it is done with it
+     * </p>
+     * @param id Identifier for the instance of ClientService that spawned the search
+     * @param query The key of the search without the set number
+     * @param cursor The position after the set
+     */
+    private void putCursor(int id, String query, SearchCursor cursor) {
+        ArrayList<SearchCursor> expired = new ArrayList<SearchCursor>();
+        synchronized(cursors) {
+            this.expireCursors(expired);
+            if(cursor.after != null) {
+                cursor.searcher.getIndexReader().incRef();
+                cursor.lastUsed = System.currentTimeMillis();
+                SearchCursor old = cursors.put(id + query, cursor);
+                if(old != null) {
+                    expired.add(old);
+                }
+            }
+        }
+        for(SearchCursor c : expired) {
+            this.release(c.searcher);
         }
-        return null;
     }
 
-    ScoreDoc[] concat(ScoreDoc[] A, ScoreDoc[] B) {
-        int aLen = A.length;
-        int bLen = B.length;
-        ScoreDoc[] C= new ScoreDoc[aLen+bLen];
-        System.arraycopy(A, 0, C, 0, aLen);
-        System.arraycopy(B, 0, C, aLen, bLen);
-        return C;
+    /**
+     * Removes the cursors that have not been used for CURSOR_TIMEOUT
+     * <p>
+     *     Must be called while holding the lock on cursors
+     * </p>
+     * @param expired The list that the removed cursors are added to; their searchers must be
+     *                released
+     */
+    private void expireCursors(List<SearchCursor> expired) {
+        long now = System.currentTimeMillis();
+        Iterator<SearchCursor> it = cursors.values().iterator();
+        while(it.hasNext()) {
+            SearchCursor c = it.next();
+            if(now - c.lastUsed > CURSOR_TIMEOUT) {
+                expired.add(c);
+                it.remove();
+            }
+        }
     }
 
     /**
      * Creates a query based on the given term field and type
+     * @param indexSearcher The searcher that the query will be run with
      * @param term Search Term for the query
      * @param field Document Field for the Query which the term is matched against
-     * @param type The type of query to be created, either QUERY_BOOLEAN, or QUERY_STANDARD,
+     * @param type The type of query to be created, one of QUERY_BOOLEAN, QUERY_STANDARD or
+     *             QUERY_FUZZY
      * @return a query for the given field and term using either a BooleanQuery with a
-     * WildcardQuery for the term or a Query built from a QueryParser and SimpleAnalyzer
+     * WildcardQuery for the term, a Query built from a QueryParser and SimpleAnalyzer or the
+     * expanded terms of a FuzzyQuery for each word
      */
-    private Query getQuery(String term, String field, int type) {
+    private Query getQuery(IndexSearcher indexSearcher, String term, String field, int type) {
+        boolean affixes = this.hasAffixes(indexSearcher);
         Query qry = null;
         if(type == FileSearcher.QUERY_BOOLEAN) {
             qry = new BooleanQuery();
-            String[] words = term.split(" ");
-            ((BooleanQuery) qry).add(new WildcardQuery(new Term(field, "*" + words[0])),
+            // The text and affix fields are lowercased at index time and none of the queries
+            // below are analyzed
+            String[] words = term.toLowerCase(Locale.ROOT).split(" ");
+            ((BooleanQuery) qry).add(this.getAffixQuery(affixes, field, words[0], true),
                     BooleanClause.Occur.MUST);
             if(words.length > 1) {
                 for(int i = 1; i < words.length - 1; i++) {
                     ((BooleanQuery) qry).add(new WildcardQuery(new Term(field, words[i])),
                             BooleanClause.Occur.MUST);
                 }
-                ((BooleanQuery) qry).add(new WildcardQuery(new Term(field,
-                                words[words.length - 1] + "*")),
-                        BooleanClause.Occur.MUST);
+                ((BooleanQuery) qry).add(this.getAffixQuery(affixes, field,
+                        words[words.length - 1], false), BooleanClause.Occur.MUST);
             }
         } else if(type == FileSearcher.QUERY_STANDARD) {
             try {
@@ -388,54 +863,262 @@ public class FileSearcher {
             } catch(ParseException e) {
                 e.printStackTrace();
             }
+        } else if(type == FileSearcher.QUERY_FUZZY) {
+            qry = this.getFuzzyQuery(indexSearcher, term, field);
         }
         return qry;
     }
 
+    /**
+     * Creates a query that matches every word of a term within a bounded edit distance
+     * <p>
+     *     Each word is matched with a Levenshtein automaton and expanded to at most
+     *     FUZZY_MAX_EXPANSIONS of the closest terms in the index, so the cost of the search doesn't
+     *     grow with the number of terms in the index. The query is rewritten here so that the
+     *     expanded terms are highlighted.
+     * </p>
+     * @param indexSearcher The searcher that the query will be run with
+     * @param term Search Term for the query
+     * @param field Document Field for the Query which the term is matched against
+     * @return a BooleanQuery requiring each word; null if the term has no words or the index
+     * can't be read
+     */
+    private Query getFuzzyQuery(IndexSearcher indexSearcher, String term, String field) {
+        BooleanQuery qry = new BooleanQuery();
+        // Splits and lowercases words the same way SimpleAnalyzer does at index time
+        for(String word : term.toLowerCase(Locale.getDefault()).split("[^\\p{L}]+")) {
+            if(word.length() == 0) {
+                continue;
+            }
+            Term t = new Term(field, word);
+            if(word.length() <= FUZZY_EXACT_LENGTH) {
+                qry.add(new TermQuery(t), BooleanClause.Occur.MUST);
+            } else {
+                int maxEdits = word.length() <= FUZZY_ONE_EDIT_LENGTH ? 1
+                        : LevenshteinAutomata.MAXIMUM_SUPPORTED_DISTANCE;
+                qry.add(new FuzzyQuery(t, maxEdits, FUZZY_PREFIX_LENGTH, FUZZY_MAX_EXPANSIONS,
+                        true), BooleanClause.Occur.MUST);
+            }
+        }
+        if(qry.clauses().isEmpty()) {
+            return null;
+        }
+        try {
+            return indexSearcher.rewrite(qry);
+        } catch(IOException e) {
+            Log.e(TAG, "Error while expanding fuzzy query", e);
+            return null;
+        }
+    }
+
+    /**
+     * Suggests a spelling of a term from the words in the index, e.g. to ask "did you mean"
+     * when a search finds nothing
+     * @param term The term as it was searched for
+     * @param field The field whose words are suggested
+     * @return the term with each word that is not in the index replaced by the most common
+     * similar word; null if every word is in the index or no similar words were found
+     */
+    public String suggestSpelling(String term, String field) {
+        IndexSearcher indexSearcher = this.acquire();
+        if(indexSearcher == null) {
+            return null;
+        }
+        try {
+            DirectSpellChecker checker = new DirectSpellChecker();
+            checker.setMinPrefix(FUZZY_PREFIX_LENGTH);
+            IndexReader reader = indexSearcher.getIndexReader();
+            StringBuilder sb = new StringBuilder();
+            boolean changed = false;
+            // Split the same way as the words of a fuzzy search
+            for(String word : term.toLowerCase(Locale.getDefault()).split("[^\\p{L}]+")) {
+                if(word.length() == 0) {
+                    continue;
+                }
+                SuggestWord[] suggestions = checker.suggestSimilar(new Term(field, word), 1,
+                        reader, SuggestMode.SUGGEST_WHEN_NOT_IN_INDEX);
+                if(sb.length() > 0) {
+                    sb.append(' ');
+                }
+                if(suggestions.length > 0) {
+                    sb.append(suggestions[0].string);
+                    changed = true;
+                } else {
+                    sb.append(word);
+                }
+            }
+            return changed ? sb.toString() : null;
+        } catch(IOException e) {
+            Log.e(TAG, "Error while suggesting spelling", e);
+            return null;
+        } finally {
+            this.release(indexSearcher);
+        }
+    }
+
+    /**
+     * Creates a query that matches terms ending with or starting with a word
+     * <p>
+     *     Searches of the "text" field are answered with a single term lookup in the
+     *     text_suffix or text_prefix field if the index has them and the word is short enough to
+     *     have been indexed there; otherwise a WildcardQuery is used
+     * </p>
+     * @param affixes true if the index has the text_suffix and text_prefix fields
+     * @param field Document Field for the Query which the word is matched against
+     * @param word The word to match, already lowercased
+     * @param suffix true to match terms ending with word; false to match terms starting with word
+     * @return a query for the terms matching the word
+     */
+    private Query getAffixQuery(boolean affixes, String field, String word, boolean suffix) {
+        if(affixes && field.equals("text") && word.length() > 0
+                && word.length() <= AffixAnalyzer.MAX_GRAM) {
+            if(suffix) {
+                return new TermQuery(new Term("text_suffix",
+                        new StringBuilder(word).reverse().toString()));
+            }
+            return new TermQuery(new Term("text_prefix", word));
+        }
+        return new WildcardQuery(new Term(field, suffix ? "*" + word : word + "*"));
+    }
+
     /**
      * Creates a directory filter; also filters a range of pages
+     * <p>
+     *     When constrainField is "path" and the index has the path_tree field, each directory
+     *     matches every file in it and its subdirectories with a single term; otherwise only
+     *     exact matches of constrainField are found
+     * </p>
+     * @param indexSearcher The searcher that the filter will be used with
      * @param constrainField The field that contains the directory info
-     * @param constrainValues The directories to which the filters shold limit
-     * @return The created filter
+     * @param constrainValues The directories to which the filters shold limit; an empty list
+     *                        doesn't limit the directories
+     * @return The created filter; null if nothing is filtered
      */
-    private Filter getFilter(String constrainField, List<String> constrainValues,
-                             int type, int startPage,
+    private Filter getFilter(IndexSearcher indexSearcher, String constrainField,
+                             List<String> constrainValues, int type, int startPage,
                              int endPage){
-        BooleanQuery cqry = new BooleanQuery();
-        if(constrainValues.size() == 1){
-            cqry.add(new TermQuery(new Term(constrainField, constrainValues.get(0))),
-                    BooleanClause.Occur.MUST);
-        } else {
-            for(String s : constrainValues) {
-                cqry.add(new TermQuery(new Term(constrainField, s)),
-                        BooleanClause.Occur.SHOULD);
+        return addPageFilter(this.getPathFilter(indexSearcher, constrainField, constrainValues),
+                type, startPage, endPage);
+    }
+
+    /**
+     * Adds a range of pages to a filter
+     * @param paths The filter for the files to search; null if every file is searched
+     * @param type The type of the search; pages are only filtered for QUERY_BOOLEAN
+     * @param startPage The first page to match; -1 to match every page
+     * @param endPage The last page to match; -1 to match every page
+     * @return The combined filter; null if nothing is filtered
+     */
+    private static Filter addPageFilter(Filter paths, int type, int startPage, int endPage) {
+        Filter pages = null;
+        if(type == FileSearcher.QUERY_BOOLEAN && startPage != -1 && endPage != -1) {
+            pages = NumericRangeFilter.newIntRange("page", startPage, endPage, true, true);
+        }
+        if(paths == null || pages == null) {
+            return paths != null ? paths : pages;
+        }
+        BooleanFilter filter = new BooleanFilter();
+        filter.add(paths, BooleanClause.Occur.MUST);
+        filter.add(pages, BooleanClause.Occur.MUST);
+        return filter;
+    }
+
+    /**
+     * Gets the filter for a set of directories
+     * <p>
+     *     Filters are kept for the MAX_CACHED_FILTERS most recently used sets of directories,
+     *     and each one keeps the Documents it matched in every segment, so the same set of
+     *     directories is only looked up once per segment however many sets of results are
+     *     requested. Any number of directories is looked up in a single pass over the terms.
+     * </p>
+     * @param indexSearcher The searcher that the filter will be used with
+     * @param constrainField The field that contains the directory info
+     * @param constrainValues The directories to which the filter should limit
+     * @return the filter; null if the directories contain every file
+     */
+    private Filter getPathFilter(IndexSearcher indexSearcher, String constrainField,
+                                 List<String> constrainValues) {
+        if(constrainValues == null || constrainValues.isEmpty()) {
+            return null;
+        }
+        boolean tree = constrainField.equals("path")
+                && this.getFormatVersion(indexSearcher) >= FileIndexer.FORMAT_PATH_TREE;
+        String field = tree ? "path_tree" : constrainField;
+        TreeSet<String> values = new TreeSet<String>();
+        for(String s : constrainValues) {
+            if(tree) {
+                s = PathAnalyzer.toTerm(s);
+                if(s == null) {
+                    // The root directory contains everything
+                    return null;
+                }
             }
+            values.add(s);
         }
-        if(type == FileSearcher.QUERY_BOOLEAN && startPage != -1 && endPage != -1) {
-            cqry.add(NumericRangeQuery.newIntRange("page", startPage, endPage, true, true),
-                    BooleanClause.Occur.MUST);
+        String key = ResultCache.key(field, new ArrayList<String>(values));
+        synchronized(pathFilters) {
+            Filter filter = pathFilters.get(key);
+            if(filter == null) {
+                ArrayList<Term> terms = new ArrayList<Term>(values.size());
+                for(String s : values) {
+                    terms.add(new Term(field, s));
+                }
+                filter = new CachingWrapperFilter(new TermsFilter(terms));
+                pathFilters.put(key, filter);
+            }
+            return filter;
         }
-        return new QueryWrapperFilter(cqry);
     }
 
     /**
-     * Takes a list of Documents and highlights information relevant to a given Query
-     * @param docs The documents to highlight
+     * Takes a list of hits and highlights information relevant to a given Query
+     * <p>
+     *     Fragments are built from the term vectors of the text field when the index has them,
+     *     so only the matches are read instead of analyzing the whole page again
+     * </p>
+     * @param token The token that cancels the search
+     * @param indexSearcher The searcher that found the hits
+     * @param hits The hits to highlight
+     * @param count The number of hits, starting from the first, that may be highlighted
      * @param qry The query used to highlight the documents
      * @param type The type of the search, one of QUERY_BOOLEAN,
      *             which just notes the page on which the term exists or QUERY_STANDARD,
      *             which gives highlighted fragments and the page on which they exist.
      * @param term The term that created the query
      * @param maxResults The maximum number of results that will be returned
-     * @return A SearchResult containing the results sorted by relevance and page
+     * @return A SearchResult containing the results sorted by relevance and page; null if the
+     * search was cancelled
      */
-    private SearchResult getHighlightedResults(List<Document> docs, Query qry, int type,
-                                               String term, int maxResults){
+    private SearchResult getHighlightedResults(CancellableFilter.Token token,
+                                               IndexSearcher indexSearcher, ScoreDoc[] hits,
+                                               int count, Query qry, int type, String term,
+                                               int maxResults){
         try {
             int numResults = 0;
+            IndexReader reader = indexSearcher.getIndexReader();
+            boolean vectors = this.getFormatVersion(indexSearcher) >= FileIndexer.FORMAT_VECTORS;
+            FastVectorHighlighter fastHighlighter = null;
+            FieldQuery fieldQuery = null;
+            if(type != FileSearcher.QUERY_BOOLEAN && vectors) {
+                fastHighlighter = new FastVectorHighlighter(true, true, new SimpleFragListBuilder(),
+                        new ScoreOrderFragmentsBuilder(new String[] {"<B>"},
+                                new String[] {"</B>"}));
+                fieldQuery = fastHighlighter.getFieldQuery(qry, reader);
+            }
             LinkedHashMap<String, LinkedHashMap<Integer, List<String>>> results = new LinkedHashMap<String, LinkedHashMap<Integer, List<String>>>();
-            for(int i = 0; i < docs.size() && numResults < maxResults; i++) {
-                Document d = docs.get(i);
+            for(int i = 0; i < count && numResults < maxResults; i++) {
+                if(token.isCancelled()) {
+                    return null;
+                }
+                Document d;
+                try {
+                    d = this.loadDocument(indexSearcher, hits[i].doc,
+                            fastHighlighter != null || type == FileSearcher.QUERY_BOOLEAN
+                                    ? PAGE_FIELDS : TEXT_FIELDS);
+                } catch(IOException e) {
+                    Log.e(TAG, "Error ", e);
+                    continue;
+                }
                 int docPage = Integer.parseInt(d.get("page"));
                 String name = d.get("path");
                 LinkedHashMap<Integer, List<String>> docResult = results.get(name);
@@ -445,24 +1128,27 @@ public class FileSearcher {
                     results.put(name, docResult);
                 }
                 if(type != FileSearcher.QUERY_BOOLEAN) {
-                    String contents = d.get("text");
-                    Highlighter highlighter = new Highlighter(new QueryScorer(qry));
-
                     String[] frag = null;
                     try {
-                        frag = highlighter.getBestFragments(new SimpleAnalyzer(Version.LUCENE_47), "text", contents, maxResults - numResults);
+                        if(fastHighlighter != null) {
+                            frag = fastHighlighter.getBestFragments(fieldQuery, reader,
+                                    hits[i].doc, "text", FRAGMENT_SIZE, maxResults - numResults);
+                        } else {
+                            // The index was written before the text field had term vectors
+                            String contents = d.get("text");
+                            Highlighter highlighter = new Highlighter(new QueryScorer(qry));
+                            frag = highlighter.getBestFragments(
+                                    new SimpleAnalyzer(Version.LUCENE_47), "text", contents,
+                                    maxResults - numResults);
+                        }
                         numResults += frag.length;
                     } catch(IOException e) {
                         Log.e(TAG, "Error while reading index", e);
                     } catch(InvalidTokenOffsetsException e) {
                         Log.e(TAG, "Error while highlighting", e);
                     }
-                    if(frag != null) {
-                        Log.i(TAG, "Frags: " + frag.length + " " + frag + " " + frag[0]);
-                    }
                     ArrayList<String> tmpList = new ArrayList<String>(Arrays
                             .asList(frag != null ? frag : new String[0]));
-                    Log.i(TAG, "list " + tmpList.getClass().getName());
                     docResult.put(docPage, tmpList);
                 } else {
                     ArrayList<String> tmp = new ArrayList<String>();
@@ -480,57 +1166,72 @@ public class FileSearcher {
     }
 
     /**
-     * Takes an array of ScoreDoc and turns it into the relevant number of Documents
-     * @param maxResults The maximum number of documents that will be parsed
-     * @param set The set number, e.g., searching set 0 returns the first n results,
-     *            searching set 1 returns the 2nd n results
-     * @param hits The ScoreDoc to be parsed
-     * @return The list of documents that is maxResults long and skips set*maxResults results
-     */
-    private ArrayList<Document> getDocs(int maxResults, int set, ScoreDoc[] hits){
-        ArrayList<Document> docs = new ArrayList<Document>();
-        int max = maxResults;
-        if(max > hits.length)max = hits.length;
-        Log.i(TAG, "Max: " + maxResults + " Set: " + set);
-        if(set >= 0) {
-            for(int i = 0; i < hits.length;
-                i++) {
-                try {
-                    Document tmp = indexSearcher.doc(hits[i].doc);
-                    docs.add(tmp);
-                } catch(IOException e) {
-                    Log.e(TAG, "Error ", e);
+     * Loads only the given fields of a Document
+     * <p>
+     *     path and page are read from DocValues where the index has them, so searches that don't
+     *     need the text of a page never read its stored fields
+     * </p>
+     * @param indexSearcher The searcher that found the Document
+     * @param doc The id of the Document
+     * @param fields The names of the fields to load
+     * @return the Document containing only the given fields
+     * @throws IOException
+     */
+    private Document loadDocument(IndexSearcher indexSearcher, int doc, Set<String> fields)
+            throws IOException {
+        Document d = this.loadDocValues(indexSearcher.getIndexReader(), doc, fields);
+        return d != null ? d : indexSearcher.doc(doc, fields);
+    }
+
+    /**
+     * Reads the given fields of a Document from DocValues
+     * @param reader The reader containing the Document
+     * @param doc The id of the Document
+     * @param fields The names of the fields to read; only path and page are supported
+     * @return the Document containing the given fields; null if any of them has no DocValues for
+     * the Document, e.g. because it was written before the index had DocValues
+     * @throws IOException
+     */
+    private Document loadDocValues(IndexReader reader, int doc, Set<String> fields)
+            throws IOException {
+        List<AtomicReaderContext> leaves = reader.leaves();
+        AtomicReaderContext leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+        int segmentDoc = doc - leaf.docBase;
+        Document d = new Document();
+        for(String field : fields) {
+            if(field.equals("path")) {
+                SortedDocValues paths = leaf.reader().getSortedDocValues(field);
+                if(paths == null || paths.getOrd(segmentDoc) == -1) {
+                    return null;
                 }
-            }
-        } else {
-            for(int i = 0; i < hits.length && i < (max * -(set + 1) +
-                    max);
-                i++) {
-                try {
-                    Document tmp = indexSearcher.doc(hits[i].doc);
-                    docs.add(tmp);
-                } catch(IOException e) {
-                    Log.e(TAG, "Error ", e);
+                BytesRef path = new BytesRef();
+                paths.get(segmentDoc, path);
+                d.add(new StoredField(field, path.utf8ToString()));
+            } else if(field.equals("page")) {
+                NumericDocValues pages = leaf.reader().getNumericDocValues(field);
+                Bits hasPage = leaf.reader().getDocsWithField(field);
+                if(pages == null || hasPage == null || !hasPage.get(segmentDoc)) {
+                    return null;
                 }
+                d.add(new StoredField(field, (int) pages.get(segmentDoc)));
+            } else {
+                return null;
             }
         }
-        Log.i(TAG, "doc size" + docs.size());
-        return docs;
+        return d;
     }
 
     /**
-     * Takes an array of ScoreDoc and turns it into the relevant number of Document paths
-     * @param maxResults The maximum number of paths that will be parsed
-     * @param set The set number, e.g., searching set 0 returns the first n results,
-     *            searching set 1 returns the 2nd n results
-     * @param hits The ScoreDoc to be parsed
-     * @return The list of paths that is maxResults long and skips set*maxResults results
+     * Takes an array of ScoreDoc and turns it into Document paths
+     * @param indexSearcher The searcher that found the hits
+     * @param hits The ScoreDoc to be parsed, as returned by searchPage
+     * @return The list of paths of the hits
      */
-    private ArrayList<String> getDocPaths(int maxResults, int set, ScoreDoc[] hits){
+    private ArrayList<String> getDocPaths(IndexSearcher indexSearcher, ScoreDoc[] hits){
         ArrayList<String> docs = new ArrayList<String>();
-        for(int i = maxResults * set; i < hits.length && i < maxResults * set + maxResults; i++) {
+        for(int i = 0; i < hits.length; i++) {
             try{
-                Document tmp = indexSearcher.doc(hits[i].doc);
+                Document tmp = this.loadDocument(indexSearcher, hits[i].doc, PATH_FIELDS);
                 docs.add(tmp.get("path"));
             } catch(IOException e) {
                 Log.e(TAG, "Error ", e);
@@ -540,14 +1241,60 @@ public class FileSearcher {
     }
 
     /**
-     * Calls for the any current searches to be inturrupted
-     * @return false if the interrupt flag was already set; otherwise true
+     * Registers a search so that it can be cancelled with interrupt()
+     * @param id Identifier for the instance of ClientService that spawned the search
+     * @return the token that cancels the search
+     */
+    private CancellableFilter.Token begin(int id) {
+        CancellableFilter.Token token = new CancellableFilter.Token();
+        synchronized(searches) {
+            List<CancellableFilter.Token> tokens = searches.get(id);
+            if(tokens == null) {
+                tokens = new ArrayList<CancellableFilter.Token>();
+                searches.put(id, tokens);
+            }
+            tokens.add(token);
+        }
+        return token;
+    }
+
+    /**
+     * Unregisters a search once it has finished
+     * @param id Identifier for the instance of ClientService that spawned the search
+     * @param token The token returned by begin() for the search
+     */
+    private void end(int id, CancellableFilter.Token token) {
+        synchronized(searches) {
+            List<CancellableFilter.Token> tokens = searches.get(id);
+            if(tokens != null) {
+                tokens.remove(token);
+                if(tokens.isEmpty()) {
+                    searches.remove(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancels the searches that are currently running for a client
+     * <p>
+     *     Searches are stopped while they are collecting or highlighting results and return null.
+     *     Searches from other clients, and searches that start after this call, are unaffected.
+     * </p>
+     * @param id Identifier for the instance of ClientService whose searches should be cancelled
+     * @return true if a search was cancelled; false if the client had no searches running
      */
     public boolean interrupt(int id) {
-        // TODO - Must become path dependent so that interrupt calls do not interrupt searches
-        // from other applications
-        int tmp = this.interrupt;
-        this.interrupt = id;
-        return !(tmp == id);
+        List<CancellableFilter.Token> tokens;
+        synchronized(searches) {
+            tokens = searches.remove(id);
+        }
+        if(tokens == null) {
+            return false;
+        }
+        for(CancellableFilter.Token token : tokens) {
+            token.cancel();
+        }
+        return true;
     }
 }
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2014 Dracode Software.
+ *
+ * This file is part of AIS.
+ *
+ * AIS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * AIS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AIS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.dracode.ais.indexer;
+
+import android.util.Log;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * IndexCatalog.java
+ *
+ * In-memory record of the last modified time and page count of every file in the index.
+ * Files are keyed on a 64 bit hash of their path and stored in primitive arrays using open
+ * addressing, so lookups are O(1) and allocate nothing.
+ */
+class IndexCatalog {
+    private static final String TAG = "ca.dracode.ais.indexer.IndexCatalog";
+    private static final String META_SUFFIX = ":meta";
+    private static final Set<String> META_FIELDS = new HashSet<String>(
+            Arrays.asList("path", "modified", "pages"));
+    /** Marks an empty slot; hash() never returns it */
+    private static final long EMPTY = 0;
+
+    private long[] keys;
+    private long[] modified;
+    private int[] pages;
+    private int size;
+
+    public IndexCatalog() {
+        this.allocate(1024);
+    }
+
+    /**
+     * Creates a 64 bit FNV-1a hash of a path
+     * @param path The path to hash
+     * @return the hash of the path; never EMPTY
+     */
+    private static long hash(String path) {
+        long h = 0xcbf29ce484222325L;
+        for(int i = 0; i < path.length(); i++) {
+            h ^= path.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h == EMPTY ? 1 : h;
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new long[capacity];
+        this.modified = new long[capacity];
+        this.pages = new int[capacity];
+        this.size = 0;
+    }
+
+    /**
+     * Finds the slot of a key
+     * @param key The hashed path
+     * @return the slot containing key, or the empty slot where it would be inserted
+     */
+    private int slot(long key) {
+        int mask = keys.length - 1;
+        int i = (int) (key ^ (key >>> 32)) & mask;
+        while(keys[i] != EMPTY && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * Checks to see if a file exists in the catalog and is up to date
+     * @param path The path of the file
+     * @param lastModified The time that the file in the filesystem was last modified
+     * @return -1 if the file is not in the catalog; 1 if the file is in the catalog but is out of
+     * date; 0 if the file is in the catalog and is up to date
+     */
+    public synchronized int check(String path, long lastModified) {
+        int i = this.slot(hash(path));
+        if(keys[i] == EMPTY) {
+            return -1;
+        }
+        return modified[i] < lastModified ? 1 : 0;
+    }
+
+    /**
+     * Checks to see if a file exists in the catalog
+     * @param path The path of the file
+     * @return true if the file is in the catalog; false otherwise
+     */
+    public synchronized boolean contains(String path) {
+        return keys[this.slot(hash(path))] != EMPTY;
+    }
+
+    /**
+     * Gets the number of pages stored for a file
+     * @param path The path of the file
+     * @return the number of pages; -1 if the file is not in the catalog or its contents are not
+     * indexed
+     */
+    public synchronized int getPages(String path) {
+        int i = this.slot(hash(path));
+        return keys[i] == EMPTY ? -1 : pages[i];
+    }
+
+    /**
+     * Adds a file to the catalog or replaces its existing entry
+     * @param path The path of the file
+     * @param lastModified The last modified time of the file when it was indexed
+     * @param pageCount The number of pages in the file; -1 if its contents are not indexed
+     */
+    public synchronized void put(String path, long lastModified, int pageCount) {
+        long key = hash(path);
+        int i = this.slot(key);
+        if(keys[i] == EMPTY) {
+            if((size + 1) * 4 > keys.length * 3) {
+                this.grow();
+                i = this.slot(key);
+            }
+            keys[i] = key;
+            size++;
+        }
+        modified[i] = lastModified;
+        pages[i] = pageCount;
+    }
+
+    /**
+     * Removes a file from the catalog
+     * @param path The path of the file
+     * @return true if the file was in the catalog; false otherwise
+     */
+    public synchronized boolean remove(String path) {
+        int i = this.slot(hash(path));
+        if(keys[i] == EMPTY) {
+            return false;
+        }
+        // Shifts the following entries of the probe sequence back so that no tombstones are needed
+        int mask = keys.length - 1;
+        int j = i;
+        while(true) {
+            j = (j + 1) & mask;
+            if(keys[j] == EMPTY) {
+                break;
+            }
+            int home = (int) (keys[j] ^ (keys[j] >>> 32)) & mask;
+            if((j > i && (home <= i || home > j)) || (j < i && (home <= i && home > j))) {
+                keys[i] = keys[j];
+                modified[i] = modified[j];
+                pages[i] = pages[j];
+                i = j;
+            }
+        }
+        keys[i] = EMPTY;
+        size--;
+        return true;
+    }
+
+    /**
+     * Gets the number of files in the catalog
+     * @return the number of files in the catalog
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Removes all files from the catalog
+     */
+    public synchronized void clear() {
+        this.allocate(1024);
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldModified = modified;
+        int[] oldPages = pages;
+        int oldSize = size;
+        this.allocate(oldKeys.length * 2);
+        for(int i = 0; i < oldKeys.length; i++) {
+            if(oldKeys[i] != EMPTY) {
+                int j = this.slot(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                modified[j] = oldModified[i];
+                pages[j] = oldPages[i];
+            }
+        }
+        this.size = oldSize;
+    }
+
+    /**
+     * Replaces the contents of the catalog with the metadata Documents found in the index
+     * @param reader The reader used to read the index
+     * @param outdated true if every file should be treated as out of date, e.g. when the index
+     *                 uses an older Document layout; false otherwise
+     * @throws IOException
+     */
+    public synchronized void load(IndexReader reader, boolean outdated) throws IOException {
+        this.allocate(1024);
+        this.add(reader, outdated);
+        Log.i(TAG, "Loaded " + size + " files into the catalog");
+    }
+
+    /**
+     * Adds the metadata Documents found in an index to the catalog
+     * @param reader The reader used to read the index
+     * @param outdated true if every file should be treated as out of date; false otherwise
+     * @return the paths of the files that were added
+     * @throws IOException
+     */
+    public synchronized List<String> add(IndexReader reader, boolean outdated)
+            throws IOException {
+        ArrayList<String> paths = new ArrayList<String>();
+        Terms terms = MultiFields.getTerms(reader, "id");
+        if(terms == null) {
+            return paths;
+        }
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        TermsEnum te = terms.iterator(null);
+        DocsEnum de = null;
+        BytesRef term;
+        while((term = te.next()) != null) {
+            String id = term.utf8ToString();
+            if(!id.endsWith(META_SUFFIX)) {
+                continue;
+            }
+            de = te.docs(liveDocs, de, DocsEnum.FLAG_NONE);
+            int doc = de.nextDoc();
+            if(doc == DocIdSetIterator.NO_MORE_DOCS) {
+                continue;
+            }
+            Document d = reader.document(doc, META_FIELDS);
+            IndexableField mod = d.getField("modified");
+            IndexableField pageCount = d.getField("pages");
+            String path = d.get("path");
+            if(mod != null && path != null) {
+                this.put(path, outdated ? Long.MIN_VALUE : mod.numericValue().longValue(),
+                        pageCount != null ? pageCount.numericValue().intValue() : -1);
+                paths.add(path);
+            }
+        }
+        return paths;
+    }
+}
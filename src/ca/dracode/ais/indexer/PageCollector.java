@@ -0,0 +1,160 @@
+/*
+ * Copyright 2014 Dracode Software.
+ *
+ * This file is part of AIS.
+ *
+ * AIS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * AIS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AIS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.dracode.ais.indexer;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * PageCollector.java
+ *
+ * Collects the pages of a single file that match a search, in one pass and without scoring,
+ * and selects the matches that follow or precede a page. The order wraps around the ends of the
+ * file, so a search forwards from the last page continues with the first one.
+ *
+ * Only the matches up to the end of the requested set are kept, in a heap ordered by their
+ * distance from the page, so memory and time don't grow with the number of matches in the file.
+ */
+class PageCollector extends Collector {
+    /**
+     * The kept matches as a max-heap. Each is stored as its distance from the start page in
+     * the upper 32 bits and its Document id in the lower.
+     */
+    private long[] heap = new long[64];
+    private int size = 0;
+    private int totalHits = 0;
+    private final int page;
+    private final boolean forwards;
+    private final int skip;
+    private final int limit;
+    private FieldCache.Ints pages;
+    private int docBase;
+
+    /**
+     * @param page The page to start from
+     * @param maxResults The maximum number of matches in a set
+     * @param set The set number. Set 0 contains the first maxResults matches on or after page,
+     *            set 1 the next maxResults, and so on. Set -n contains the first n * maxResults
+     *            matches before page going backwards.
+     */
+    PageCollector(int page, int maxResults, int set) {
+        this.page = page;
+        this.forwards = set >= 0;
+        long skip = forwards ? (long) maxResults * set : 0;
+        long limit = forwards ? skip + maxResults : (long) maxResults * -(long) set;
+        this.skip = (int) Math.min(skip, Integer.MAX_VALUE);
+        this.limit = (int) Math.min(limit, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void setScorer(Scorer scorer) {
+    }
+
+    @Override
+    public void setNextReader(AtomicReaderContext context) throws IOException {
+        // Reads the page DocValues, or uninverts the page field for indexes without them
+        this.pages = FieldCache.DEFAULT.getInts(context.reader(), "page", false);
+        this.docBase = context.docBase;
+    }
+
+    @Override
+    public void collect(int doc) {
+        totalHits++;
+        int p = pages.get(doc);
+        // Pages are never negative, so masking the sign bit wraps the distance around the ends
+        // of the file
+        long distance = (forwards ? p - page : page - 1 - p) & 0x7FFFFFFFL;
+        long match = (distance << 32) | (docBase + doc);
+        if(size < limit) {
+            if(size == heap.length) {
+                heap = Arrays.copyOf(heap, (int) Math.min((long) size * 2, limit));
+            }
+            heap[size] = match;
+            this.siftUp(size++);
+        } else if(size > 0 && match < heap[0]) {
+            heap[0] = match;
+            this.siftDown(0);
+        }
+    }
+
+    private void siftUp(int i) {
+        long match = heap[i];
+        while(i > 0) {
+            int parent = (i - 1) >>> 1;
+            if(heap[parent] >= match) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = match;
+    }
+
+    private void siftDown(int i) {
+        long match = heap[i];
+        int half = size >>> 1;
+        while(i < half) {
+            int child = 2 * i + 1;
+            if(child + 1 < size && heap[child + 1] > heap[child]) {
+                child++;
+            }
+            if(match >= heap[child]) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = match;
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder() {
+        return true;
+    }
+
+    /**
+     * Gets the number of matching pages
+     * @return the number of matches collected, including those that were not kept
+     */
+    public int getTotalHits() {
+        return totalHits;
+    }
+
+    /**
+     * Gets the matches in the set given to the constructor
+     * @return the matches in the set, in the order they were selected
+     */
+    public ScoreDoc[] getHits() {
+        long[] kept = Arrays.copyOf(heap, size);
+        Arrays.sort(kept);
+        int count = Math.max(0, size - skip);
+        ScoreDoc[] hits = new ScoreDoc[count];
+        for(int i = 0; i < count; i++) {
+            hits[i] = new ScoreDoc((int) kept[skip + i], Float.NaN);
+        }
+        return hits;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2014 Dracode Software.
+ *
+ * This file is part of AIS.
+ *
+ * AIS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * AIS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AIS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.dracode.ais.indexer;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.path.PathHierarchyTokenizer;
+
+import java.io.Reader;
+
+/**
+ * PathAnalyzer.java
+ *
+ * Splits a path into the path of every directory that contains it followed by the path itself,
+ * e.g. "/a/b/c.txt" becomes "/a", "/a/b" and "/a/b/c.txt". A field analyzed this way lets a
+ * search be constrained to a directory and all of its subdirectories with a single term.
+ */
+public final class PathAnalyzer extends Analyzer {
+    /**
+     * Turns a directory into the term that matches every file inside of it
+     * @param dir The path of the directory, with or without a trailing separator
+     * @return the term for the directory; null if the directory is the root directory, which
+     * contains every file
+     */
+    public static String toTerm(String dir) {
+        int end = dir.length();
+        while(end > 0 && dir.charAt(end - 1) == '/') {
+            end--;
+        }
+        return end == 0 ? null : dir.substring(0, end);
+    }
+
+    @Override
+    protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
+        Tokenizer source = new PathHierarchyTokenizer(reader);
+        return new TokenStreamComponents(source);
+    }
+}
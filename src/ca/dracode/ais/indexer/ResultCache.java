@@ -0,0 +1,156 @@
+/*
+ * Copyright 2014 Dracode Software.
+ *
+ * This file is part of AIS.
+ *
+ * AIS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * AIS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AIS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.dracode.ais.indexer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ResultCache.java
+ *
+ * Least recently used cache of search results for a single version of the index. Results are
+ * only valid for the reader that produced them, so the whole cache is dropped as soon as a search
+ * runs against a newer version. Searches against older versions, e.g. from a snapshot kept for
+ * paging, bypass the cache. The cache holds at most maxBytes of estimated result size.
+ */
+class ResultCache {
+    private static final char SEPARATOR = '\u0000';
+
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final long maxBytes;
+    private long bytes;
+    private long generation = -1;
+    private long hits;
+    private long misses;
+
+    private static class Entry {
+        final Object value;
+        final long bytes;
+
+        Entry(Object value, long bytes) {
+            this.value = value;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * @param maxBytes The estimated size, in bytes, of the results that may be kept
+     */
+    public ResultCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Creates a cache key from the parameters of a search
+     * @param parts The parameters of the search; Lists are expanded into their elements
+     * @return a key that is only equal to the key of a search with the same parameters
+     */
+    public static String key(Object... parts) {
+        StringBuilder sb = new StringBuilder();
+        for(Object part : parts) {
+            if(part instanceof List) {
+                sb.append('[');
+                for(Object o : (List<?>) part) {
+                    sb.append(o).append(SEPARATOR);
+                }
+                sb.append(']');
+            } else {
+                sb.append(part);
+            }
+            sb.append(SEPARATOR);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Drops every result if they were found in an older version of the index
+     * @param generation The version of the index that is being searched
+     * @return false if generation is older than the cached results; true otherwise
+     */
+    private boolean checkGeneration(long generation) {
+        if(generation < this.generation) {
+            return false;
+        }
+        if(generation > this.generation) {
+            entries.clear();
+            this.bytes = 0;
+            this.generation = generation;
+        }
+        return true;
+    }
+
+    /**
+     * Gets a cached result
+     * @param generation The version of the index that is being searched
+     * @param key The key created by key() for the search
+     * @return the result of the search; null if it is not cached
+     */
+    public synchronized Object get(long generation, String key) {
+        Entry e = this.checkGeneration(generation) ? entries.get(key) : null;
+        if(e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e.value;
+    }
+
+    /**
+     * Caches a result
+     * @param generation The version of the index that the result was found in
+     * @param key The key created by key() for the search
+     * @param value The result of the search
+     * @param size The estimated size of the result in bytes
+     */
+    public synchronized void put(long generation, String key, Object value, long size) {
+        if(value == null || size > maxBytes || !this.checkGeneration(generation)) {
+            return;
+        }
+        Entry old = entries.put(key, new Entry(value, size));
+        if(old != null) {
+            bytes -= old.bytes;
+        }
+        bytes += size;
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while(bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().getValue().bytes;
+            it.remove();
+        }
+    }
+
+    /**
+     * Gets the number of searches that were answered from the cache
+     * @return the number of cache hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of searches that were not in the cache
+     * @return the number of cache misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2014 Dracode Software.
+ *
+ * This file is part of AIS.
+ *
+ * AIS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * AIS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AIS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.dracode.ais.indexer;
+
+import android.util.Log;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SearcherProvider.java
+ *
+ * Shares one SearcherManager between every FileIndexer and FileSearcher in the process. While an
+ * indexer is open, searchers are near-real-time readers taken from its IndexWriter so that they
+ * see changes before they are committed; otherwise they are opened from the index directory.
+ * Searchers are refreshed after every commit and whenever they are older than MAX_STALENESS.
+ * Every searcher returned by acquire() must be given back with release().
+ *
+ * Large indexes can also be searched in parallel, with each slice of segments searched on a
+ * shared, bounded pool of threads. See forQuery() for when this is done.
+ */
+public class SearcherProvider {
+    private static final String TAG = "ca.dracode.ais.indexer.SearcherProvider";
+    /** The maximum time, in milliseconds, that a searcher is used without checking for changes */
+    public static final long MAX_STALENESS = 5000;
+    /** The number of Documents above which every search of a multi-segment index is parallel */
+    public static final int PARALLEL_MIN_DOCS = 100000;
+    /** The number of Documents above which expensive multi-segment searches are parallel */
+    public static final int PARALLEL_MIN_EXPENSIVE_DOCS = 20000;
+    private static SearcherProvider instance;
+    private static ExecutorService executor;
+
+    private final Directory directory;
+    private SearcherManager manager;
+    private IndexWriter writer;
+    private volatile long lastRefresh;
+    private boolean closed = false;
+    private volatile boolean parallel = Runtime.getRuntime().availableProcessors() > 1;
+
+    /**
+     * Creates a provider for an index that is not shared with the rest of the process
+     * @param directory The directory containing the index
+     */
+    public SearcherProvider(Directory directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Gets the provider for the index on the device's external storage
+     * @return the shared provider; null if the index directory is not available
+     */
+    public static synchronized SearcherProvider get() {
+        if(instance == null) {
+            String root = FileIndexer.getRootStorageDir();
+            if(root == null) {
+                return null;
+            }
+            try {
+                instance = new SearcherProvider(FSDirectory.open(new File(root)));
+            } catch(IOException e) {
+                Log.e(TAG, "Error ", e);
+                return null;
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Serves near-real-time searchers from the given writer
+     * @param writer The writer that is now open on the index
+     */
+    synchronized void setWriter(IndexWriter writer) {
+        try {
+            this.swap(new SearcherManager(writer, true, null));
+            this.writer = writer;
+        } catch(IOException e) {
+            Log.e(TAG, "Error while opening near-real-time searcher", e);
+        }
+    }
+
+    /**
+     * Stops serving searchers from the given writer
+     * <p>
+     *     Must be called after the writer's last commit and before it is closed
+     * </p>
+     * @param writer The writer that is about to be closed
+     */
+    synchronized void clearWriter(IndexWriter writer) {
+        if(this.writer != writer) {
+            return;
+        }
+        this.writer = null;
+        try {
+            this.swap(new SearcherManager(directory, null));
+        } catch(IOException e) {
+            Log.e(TAG, "Error while reopening searcher", e);
+            this.swap(null);
+        }
+    }
+
+    private void swap(SearcherManager newManager) {
+        if(manager != null) {
+            try {
+                // Searchers that are still acquired stay usable until they are released
+                manager.close();
+            } catch(IOException e) {
+                Log.e(TAG, "Error ", e);
+            }
+        }
+        this.manager = newManager;
+        this.lastRefresh = System.currentTimeMillis();
+    }
+
+    private synchronized SearcherManager getManager() {
+        if(manager == null && !closed) {
+            try {
+                this.manager = new SearcherManager(directory, null);
+                this.lastRefresh = System.currentTimeMillis();
+            } catch(IOException e) {
+                // The index doesn't exist yet
+                Log.e(TAG, "Error while opening searcher", e);
+            }
+        }
+        return manager;
+    }
+
+    /**
+     * Gets a searcher for the current state of the index
+     * @return a searcher that must be given back with release(); null if the index can't be read
+     */
+    public IndexSearcher acquire() {
+        SearcherManager m = this.getManager();
+        if(m == null) {
+            return null;
+        }
+        if(System.currentTimeMillis() - lastRefresh > MAX_STALENESS) {
+            this.refresh();
+        }
+        try {
+            return m.acquire();
+        } catch(Exception e) {
+            // The manager was closed by a concurrent swap
+            m = this.getManager();
+            try {
+                return m != null ? m.acquire() : null;
+            } catch(Exception e1) {
+                Log.e(TAG, "Error while acquiring searcher", e1);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Gives back a searcher returned by acquire()
+     * @param searcher The searcher to release; may be null
+     */
+    public void release(IndexSearcher searcher) {
+        if(searcher == null) {
+            return;
+        }
+        try {
+            // Same as SearcherManager.release, which can't be used as the manager that the
+            // searcher came from may since have been swapped out
+            searcher.getIndexReader().decRef();
+        } catch(IOException e) {
+            Log.e(TAG, "Error while releasing searcher", e);
+        }
+    }
+
+    /**
+     * Closes a provider created for an index that is not shared
+     * <p>
+     *     Searchers that are still acquired stay usable until they are released; acquire()
+     *     returns null from now on
+     * </p>
+     */
+    public void close() {
+        synchronized(this) {
+            if(this == instance) {
+                return;
+            }
+            this.swap(null);
+            this.closed = true;
+        }
+        try {
+            directory.close();
+        } catch(IOException e) {
+            Log.e(TAG, "Error ", e);
+        }
+    }
+
+    /**
+     * Gets the memory used by an index that is kept in memory
+     * @return the size of the index in bytes; 0 if the index is not kept in memory
+     */
+    public long ramBytesUsed() {
+        return directory instanceof RAMDirectory ? ((RAMDirectory) directory).sizeInBytes() : 0;
+    }
+
+    /**
+     * Sets whether searches may run on several threads at once
+     * @param parallel true to allow parallel searches; false to search every index on the calling
+     *                 thread
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel && Runtime.getRuntime().availableProcessors() > 1;
+    }
+
+    /**
+     * Gets a searcher suited to a query
+     * <p>
+     *     Segments are only searched in parallel when the index is large enough for the work to
+     *     outweigh the cost of handing it to other threads
+     * </p>
+     * @param searcher A searcher returned by acquire(); it must still be released once the search
+     *                 is finished
+     * @param expensive true if the query is expected to match or score a large part of the index
+     * @return a searcher over the same reader as searcher
+     */
+    public IndexSearcher forQuery(IndexSearcher searcher, boolean expensive) {
+        if(!parallel || searcher == null) {
+            return searcher;
+        }
+        IndexReader reader = searcher.getIndexReader();
+        int minDocs = expensive ? PARALLEL_MIN_EXPENSIVE_DOCS : PARALLEL_MIN_DOCS;
+        if(reader.leaves().size() < 2 || reader.maxDoc() < minDocs) {
+            return searcher;
+        }
+        return new IndexSearcher(reader, getExecutor());
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if(executor == null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30,
+                    TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(threads * 4),
+                    new ThreadFactory() {
+                        private int count = 0;
+
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "AIS-Search-" + count++);
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    },
+                    // Slices that don't fit in the queue are searched by the calling thread
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        return executor;
+    }
+
+    /**
+     * Makes recent changes to the index visible to searchers acquired from now on
+     * <p>
+     *     Returns immediately if another thread is already refreshing
+     * </p>
+     */
+    public void refresh() {
+        SearcherManager m;
+        synchronized(this) {
+            m = this.manager;
+        }
+        if(m == null) {
+            return;
+        }
+        this.lastRefresh = System.currentTimeMillis();
+        try {
+            m.maybeRefresh();
+        } catch(Exception e) {
+            Log.e(TAG, "Error while refreshing searcher", e);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2014 Dracode Software.
+ *
+ * This file is part of AIS.
+ *
+ * AIS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * AIS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AIS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.dracode.ais.indexer;
+
+import android.util.Log;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.suggest.InMemorySorter;
+import org.apache.lucene.search.suggest.fst.FSTCompletion;
+import org.apache.lucene.search.suggest.fst.FSTCompletionBuilder;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Suggester.java
+ *
+ * Completes prefixes of words from the terms of the text field and the names of indexed files.
+ * Each segment of the index gets its own FST, built on a background thread the first time the
+ * segment is seen, so a commit only costs the FSTs of the segments it wrote and lookups never
+ * wait for a build. Lookups merge the completions of every segment that has been built.
+ *
+ * Terms are ranked by the number of pages they appear on, in logarithmic buckets, and file
+ * names rank above every term. Terms that only appear in deleted pages are suggested until
+ * their segment is merged away.
+ */
+public class Suggester {
+    private static final String TAG = "ca.dracode.ais.indexer.Suggester";
+    /** The number of weight buckets; the highest one is used for file names */
+    private static final int BUCKETS = 16;
+    /** The shortest term, in characters, that is suggested */
+    private static final int MIN_TERM_LENGTH = 3;
+    /** The longest term, in bytes, that is suggested */
+    private static final int MAX_TERM_LENGTH = 40;
+    /** The most terms that are suggested from a single segment, bounding the memory of a build */
+    private static final int MAX_TERMS = 100000;
+    private static Suggester instance;
+
+    private final SearcherProvider provider;
+    private final AtomicBoolean updating = new AtomicBoolean(false);
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "AIS-Suggest");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+    /** The FST of each segment, keyed by the segment's core cache key; replaced, never changed */
+    private volatile Map<Object, FSTCompletion> segments = new HashMap<Object, FSTCompletion>();
+
+    /**
+     * @param provider The provider of the index that suggestions are taken from
+     */
+    public Suggester(SearcherProvider provider) {
+        this.provider = provider;
+    }
+
+    /**
+     * Gets the suggester for the index on the device's external storage
+     * @return the shared suggester; null if the index directory is not available
+     */
+    public static synchronized Suggester get() {
+        if(instance == null) {
+            SearcherProvider provider = SearcherProvider.get();
+            if(provider == null) {
+                return null;
+            }
+            instance = new Suggester(provider);
+        }
+        return instance;
+    }
+
+    /**
+     * Builds the FSTs of new segments in the background and drops those of removed segments
+     * <p>
+     *     Returns immediately; does nothing if an update is already running
+     * </p>
+     */
+    public void update() {
+        if(!updating.compareAndSet(false, true)) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    rebuild();
+                } finally {
+                    updating.set(false);
+                }
+            }
+        });
+    }
+
+    private void rebuild() {
+        IndexSearcher searcher = provider.acquire();
+        if(searcher == null) {
+            return;
+        }
+        try {
+            Map<Object, FSTCompletion> old = this.segments;
+            Map<Object, FSTCompletion> built = new HashMap<Object, FSTCompletion>();
+            Map<Object, FSTCompletion> published = old;
+            for(AtomicReaderContext context : searcher.getIndexReader().leaves()) {
+                Object key = context.reader().getCoreCacheKey();
+                FSTCompletion completion = old.get(key);
+                if(completion == null) {
+                    long start = System.currentTimeMillis();
+                    completion = build(context.reader());
+                    Log.i(TAG, "Built suggestions for segment of " + context.reader().maxDoc()
+                            + " Documents in " + (System.currentTimeMillis() - start) + "ms");
+                    // Makes each segment available as soon as it is built; segments that were
+                    // removed are still suggested from until every segment has been built
+                    published = new HashMap<Object, FSTCompletion>(published);
+                    published.put(key, completion);
+                    this.segments = published;
+                }
+                built.put(key, completion);
+            }
+            this.segments = built;
+        } catch(IOException e) {
+            Log.e(TAG, "Error while building suggestions", e);
+        } finally {
+            provider.release(searcher);
+        }
+    }
+
+    /**
+     * Builds the FST for a single segment
+     * <p>
+     *     Every term is held in memory while the FST is built, so at most MAX_TERMS terms are
+     *     taken from a segment. Terms that only appear on a single page are left out of
+     *     segments with more terms than that.
+     * </p>
+     * @param reader The segment
+     * @return the completions of the terms and file names in the segment
+     */
+    private static FSTCompletion build(AtomicReader reader) throws IOException {
+        FSTCompletionBuilder builder = new FSTCompletionBuilder(BUCKETS,
+                new InMemorySorter(BytesRef.getUTF8SortedAsUnicodeComparator()),
+                Integer.MAX_VALUE);
+        Terms text = reader.terms("text");
+        if(text != null) {
+            // size() is -1 if the codec doesn't know it, in which case only MAX_TERMS applies
+            int minDocFreq = text.size() > MAX_TERMS ? 2 : 1;
+            int count = 0;
+            TermsEnum te = text.iterator(null);
+            BytesRef term;
+            while((term = te.next()) != null && count < MAX_TERMS) {
+                if(te.docFreq() < minDocFreq || term.length > MAX_TERM_LENGTH
+                        || term.utf8ToString().length() < MIN_TERM_LENGTH) {
+                    continue;
+                }
+                count++;
+                // Floor of log2 of the number of pages containing the term
+                int bucket = 31 - Integer.numberOfLeadingZeros(te.docFreq());
+                builder.add(term, Math.min(bucket, BUCKETS - 2));
+            }
+        }
+        Terms paths = reader.terms("path");
+        if(paths != null) {
+            TermsEnum te = paths.iterator(null);
+            BytesRef term;
+            while((term = te.next()) != null) {
+                String path = term.utf8ToString();
+                String name = path.substring(path.lastIndexOf('/') + 1);
+                if(name.length() > 0) {
+                    builder.add(new BytesRef(name.toLowerCase(Locale.getDefault())),
+                            BUCKETS - 1);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Completes a prefix
+     * <p>
+     *     Only uses segments whose FSTs have already been built, and starts building the rest
+     * </p>
+     * @param prefix The start of a word or file name
+     * @param num The maximum number of completions
+     * @return the completions, best first
+     */
+    public List<String> lookup(String prefix, int num) {
+        String key = prefix.toLowerCase(Locale.getDefault());
+        Map<Object, FSTCompletion> current = this.segments;
+        final HashMap<String, Integer> buckets = new HashMap<String, Integer>();
+        for(FSTCompletion completion : current.values()) {
+            for(FSTCompletion.Completion c : completion.lookup(key, num)) {
+                String s = c.utf8.utf8ToString();
+                Integer b = buckets.get(s);
+                if(b == null || b < c.bucket) {
+                    buckets.put(s, c.bucket);
+                }
+            }
+        }
+        if(this.isStale(current)) {
+            this.update();
+        }
+        List<String> results = new ArrayList<String>(buckets.keySet());
+        Collections.sort(results, new Comparator<String>() {
+            public int compare(String a, String b) {
+                int diff = buckets.get(b) - buckets.get(a);
+                return diff != 0 ? diff : a.compareTo(b);
+            }
+        });
+        return results.size() > num ? results.subList(0, num) : results;
+    }
+
+    /**
+     * Checks whether a segment of the current index has no FST yet
+     * @param current The FSTs used for a lookup
+     * @return true if the FSTs need to be updated
+     */
+    private boolean isStale(Map<Object, FSTCompletion> current) {
+        IndexSearcher searcher = provider.acquire();
+        if(searcher == null) {
+            return false;
+        }
+        try {
+            List<AtomicReaderContext> leaves = searcher.getIndexReader().leaves();
+            if(leaves.size() != current.size()) {
+                return true;
+            }
+            for(AtomicReaderContext context : leaves) {
+                if(!current.containsKey(context.reader().getCoreCacheKey())) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            provider.release(searcher);
+        }
+    }
+}
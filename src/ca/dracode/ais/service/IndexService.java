@@ -23,28 +23,30 @@ import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.ServiceConnection;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.BatteryManager;
 import android.os.Binder;
 import android.os.Environment;
 import android.os.IBinder;
-import android.os.RemoteException;
+import android.os.PowerManager;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Queue;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ca.dracode.ais.R;
-import ca.dracode.ais.indexclient.MClientService;
 import ca.dracode.ais.indexer.FileIndexer;
 
 /*
@@ -53,9 +55,10 @@ import ca.dracode.ais.indexer.FileIndexer;
  * Service that crawls through the host device's file system and tries to index 
  * indexable files. It uses info files generated by the client library to access remote services
  *
- *  TODO - Instead of connecting to index services to index each file found, make a list of which files
- *      need to be indexed by each service and connect to each service only once
- *       - Create a progress indicator by using the total size of the documents found while crawling
+ *  Files are parsed through one ParserSession per parser service, which stays bound for as long
+ *  as the crawler keeps finding files for that service.
+ *
+ *  TODO - Create a progress indicator by using the total size of the documents found while crawling
  *       as each document is indexed, update the main notification with the filesizeindex/totalfilesize
  *      noting the amount as a percentage
  */
@@ -63,73 +66,59 @@ import ca.dracode.ais.indexer.FileIndexer;
 public class IndexService extends Service {
     private static String TAG = "ca.dracode.ais.service.IndexService";
     private final IBinder mBinder = new LocalBinder();
-    private final int maxTasks = 30;
+    /** The maximum number of files found by the crawler that are being parsed or indexed at once */
+    private static final int MAX_TASKS = 30;
+    /** The maximum number of pages of a file that are held between its parser and the indexer */
+    private static final int PAGE_BUDGET = 8;
+    /**
+     * The time, in milliseconds, that a parser waits for room for a page before checking if the
+     * worker has given up on the file
+     */
+    private static final long ABANDON_CHECK = 500;
+    /** The time, in milliseconds, that a worker waits for the next page of a file */
+    private static final long PAGE_TIMEOUT = 60000;
     protected boolean interrupt;
     private NotificationManager nm;
-    private int mIsBound = 0;
-    private boolean doneCrawling;
-    private boolean canStop = false;
-    private ArrayList<ParserService> services;
-    private Queue<Indexable> pIndexes;
+    /** The session with each parser service, keyed by the service's name */
+    private final HashMap<String, ParserSession> sessions = new HashMap<String, ParserSession>();
+    private volatile boolean doneCrawling;
+    private volatile boolean canStop = false;
+    private ParserRegistry registry;
+    private BlockingQueue<Indexable> pIndexes;
     private FileIndexer indexer;
-    private int tasks = 0;
+    /** Every file that has been submitted and is not yet indexed, whether or not it was crawled */
+    private final AtomicInteger tasks = new AtomicInteger();
+    /** Blocks the crawler while MAX_TASKS of the files it found are still being processed */
+    private final Semaphore crawlSlots = new Semaphore(MAX_TASKS);
+    private final AtomicBoolean closing = new AtomicBoolean(false);
+    /** Queued once the service can stop; the first worker to take it closes the indexer */
+    private final Indexable stop = new Indexable(null, null, null, null, null);
+    private final AtomicBoolean stopped = new AtomicBoolean(false);
     private boolean crawl = false;
-
-    /**
-     * Retrieves service information from files found in the directory passed and all of its
-     * subdirectories
-     * @param directory directory to be searched
-     * @param services The list to store the given services
-     */
-    private static void getServices(File directory, List<ParserService> services) {
-        File[] contents = directory.listFiles();
-        for(File content : contents) {
-            if(content.canRead()) {
-                if(content.isFile()) {
-                    if(content.getName().toLowerCase().endsWith(".is")) {
-                        BufferedReader br = null;
-                        try {
-                            br = new BufferedReader(new FileReader(
-                                    content.getAbsolutePath()));
-                        } catch(FileNotFoundException e) {
-                            e.printStackTrace();
-                        }
-                        if(br != null) {
-                            try {
-                                String name = br.readLine();
-                                Log.i(TAG, "Found service of name: " + name);
-                                ArrayList<String> tmpExt = new ArrayList<String>();
-                                if(name != null) {
-                                    String tmp;
-                                    while((tmp = br.readLine()) != null) {
-                                        tmpExt.add(tmp);
-                                        Log.i(TAG, "Found Extension: " + tmp);
-                                    }
-                                }
-                                br.close();
-                                services.add(new ParserService(name,
-                                        tmpExt));
-                            } catch(IOException e) {
-                                e.printStackTrace();
-                            }
-                        }
-                    }
-                } else {
-                    IndexService.getServices(content, services);
-                }
-            }
-        }
-    }
+    private volatile boolean crawlFinished = false;
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        boolean maintain = false;
         if(intent != null) {
             this.crawl = intent.getBooleanExtra("crawl", false);
+            maintain = intent.getBooleanExtra("maintain", false);
         }
         if(this.crawl) {
             canStop = true;
             doneCrawling = false;
             this.crawl();
+        } else if(maintain) {
+            // Started by the maintenance alarm; the index is merged while the service closes
+            // if the device is still idle and charging
+            if(doneCrawling) {
+                canStop = true;
+                Log.i(TAG, "Started for index maintenance");
+                this.stopWhenDone();
+            } else {
+                // The running crawl maintains the index when it finishes
+                Log.i(TAG, "Crawl in progress, maintenance will run once it is finished");
+            }
         } else {
             doneCrawling = true;
             canStop = false;
@@ -140,7 +129,6 @@ public class IndexService extends Service {
 
     @Override
     public void onCreate() {
-        this.services = new ArrayList<ParserService>();
         nm = (NotificationManager) this
                 .getSystemService(NOTIFICATION_SERVICE);
         IndexService.this.notifyPersistent(
@@ -160,60 +148,71 @@ public class IndexService extends Service {
         }
 
         if(mExternalStorageAvailable && mExternalStorageWriteable) {
-            IndexService.getServices(new File(Environment
-                    .getExternalStorageDirectory() + "/Android/data"), this.services);
+            this.registry = new ParserRegistry(this, new File(Environment
+                    .getExternalStorageDirectory() + "/Android/data"));
+            this.registry.load();
         } else {
             notify("Error: External Storage not mounted", 2);
             return;
         }
         Log.i(TAG, "Creating Indexer");
-        this.indexer = new FileIndexer(getApplicationContext());
-        Log.i(TAG, "Created Indexer");
-        this.pIndexes = new LinkedList<Indexable>();
+        int workers = this.getWorkerCount();
+        this.indexer = new FileIndexer(getApplicationContext(), workers);
+        Log.i(TAG, "Created Indexer with " + workers + " workers");
+        this.pIndexes = new LinkedBlockingQueue<Indexable>();
         this.doneCrawling = true;
-        new Thread(new Runnable() {
-            public void run() {
-                //Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-                while(true) {
-                    try {
-                        Thread.sleep(1);
-                    } catch(InterruptedException e1) {
-                        e1.printStackTrace();
-                    }
-                    Indexable tmp = pIndexes.poll();
-                    if(tmp != null) {
-                        //Log.i(TAG, "Indexing: " + tmp.file.getAbsolutePath());
-                        if(tmp.tmpData == null || tmp.tmpData.size() == 0) {
-                            indexer.buildIndex(tmp.file.getAbsolutePath(), -1);
-                            tasks--;
-                        } else {
-                            try {
-                                if(tmp.callback != null) {
-                                    tmp.callback.indexCreated(tmp.file, indexer.buildIndex(tmp.tmpData,
-                                            tmp.file));
-                                } else {
-                                    indexer.buildIndex(tmp.tmpData,
-                                            tmp.file);
-                                }
-                                tasks--;
-                            } catch(Exception e) {
-                                Log.e(TAG, "Error ", e);
-                            }
-                        }
-                    }
-                    if(doneCrawling && mIsBound == 0
-                            && pIndexes.size() == 0 && canStop) {
-                        Log.i(TAG, "Done Indexing, Closing... ");
-                        indexer.close();
-                        doneCrawling = false;
-                        NotificationManager notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-                        notificationManager.cancel(1);
-                        IndexService.this.stopSelf();
-                        break;
-                    }
-                }
-            }
-        }).start();
+        for(int i = 0; i < workers; i++) {
+            new Thread(new IndexWorker(), "IndexWorker-" + i).start();
+        }
+    }
+
+    /**
+     * Gets the number of threads that should index files
+     * <p>
+     *     Uses the "index_threads" preference if it is set; otherwise uses one thread per core,
+     *     or half as many when the device is running on battery
+     * </p>
+     * @return the number of indexing threads, at least 1
+     */
+    private int getWorkerCount() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        int workers = 0;
+        try {
+            workers = Integer.parseInt(prefs.getString("index_threads", "0"));
+        } catch(NumberFormatException e) {
+            Log.e(TAG, "Invalid thread count preference", e);
+        }
+        if(workers > 0) {
+            return workers;
+        }
+        workers = Runtime.getRuntime().availableProcessors();
+        if(!isCharging(this)) {
+            workers /= 2;
+        }
+        return Math.max(workers, 1);
+    }
+
+    /**
+     * Checks if the device is plugged in
+     * @param context The context used to read the battery state
+     * @return true if the device is charging; false otherwise
+     */
+    private static boolean isCharging(Context context) {
+        // Only reads the sticky broadcast, so no receiver is registered
+        Intent battery = context.getApplicationContext().registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    /**
+     * Checks if the device is charging and not being used, so that expensive index maintenance
+     * won't affect the user
+     * @param context The context used to read the device state
+     * @return true if the device is idle and charging; false otherwise
+     */
+    public static boolean isIdleAndCharging(Context context) {
+        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        return isCharging(context) && pm != null && !pm.isScreenOn();
     }
 
     /**
@@ -221,23 +220,76 @@ public class IndexService extends Service {
      */
     public void stopWhenReady() {
         canStop = true;
+        this.stopWhenDone();
+    }
+
+    /**
+     * Wakes the workers to close the indexer and stop the service if the crawl is done, every
+     * submitted file has been indexed and the service is allowed to stop
+     * <p>
+     *     Called whenever one of those conditions may have become true
+     * </p>
+     */
+    private void stopWhenDone() {
+        // A file is only no longer counted once it has been written, so the indexer can't be
+        // closed while one is being indexed
+        if(doneCrawling && tasks.get() == 0 && canStop && pIndexes != null
+                && closing.compareAndSet(false, true)) {
+            pIndexes.add(stop);
+        }
     }
 
     @Override
     public void onDestroy() {
+        this.closeSessions();
         nm.cancel(1);
     }
 
+    /**
+     * Gets the session that files are parsed through for a parser service
+     * @param serviceName The name of the parser service
+     * @return the service's session
+     */
+    private ParserSession getSession(String serviceName) {
+        synchronized(sessions) {
+            ParserSession session = sessions.get(serviceName);
+            if(session == null) {
+                session = new ParserSession(getApplicationContext(), serviceName);
+                sessions.put(serviceName, session);
+            }
+            return session;
+        }
+    }
+
+    /**
+     * Unbinds from every parser service
+     */
+    private void closeSessions() {
+        synchronized(sessions) {
+            for(ParserSession session : sessions.values()) {
+                session.close();
+            }
+            sessions.clear();
+        }
+    }
+
     /**
      * Starts indexing the external storage directory
      */
     public void crawl() {
+        // On first boot every file is new, so the index can be built without any lookups; a
+        // bulk load that was killed carries on from its last commit
+        if(indexer != null && indexer.startBulkLoad()) {
+            Log.i(TAG, "Crawling in bulk load mode");
+        }
         new Thread(new Runnable() {
             public void run() {
                 //Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
                 try {
                     crawl(Environment.getExternalStorageDirectory());
+                    crawlFinished = true;
                     doneCrawling = true;
+                    stopWhenDone();
                 } catch(IOException e) {
                     Log.e(TAG, "Error", e);
                 }
@@ -259,15 +311,8 @@ public class IndexService extends Service {
                 if(content.getAbsolutePath().contains("Android/data/ca.dracode.ais")) {
                     return;
                 }
-                while(tasks > maxTasks) {
-                    try {
-                        Thread.sleep(10);
-                    } catch(InterruptedException e) {
-                        Log.e(TAG, "Error", e);
-                    }
-                }
                 if(content.canRead()) {
-                    createIndex(content, null);
+                    this.createIndex(content, null, true);
                 }
             }
             for(File content : contents) {
@@ -289,46 +334,49 @@ public class IndexService extends Service {
     /**
      * calls for an index to be created for the given file
      * @param content The file to be stored in the index
+     * @param callback Told when the file has been indexed, or that it didn't need to be; may
+     *                 be null
      */
     public void createIndex(File content, IndexCallback callback) {
+        this.createIndex(content, callback, false);
+    }
+
+    /**
+     * calls for an index to be created for the given file
+     * @param content The file to be stored in the index
+     * @param callback Told when the file has been indexed; may be null
+     * @param throttle true to wait until fewer than MAX_TASKS throttled files are in progress,
+     *                 which keeps the crawler from getting ahead of the workers
+     */
+    private void createIndex(File content, IndexCallback callback, boolean throttle) {
         String serviceName = null;
         if(content.isFile()) {
-            for(ParserService service : services) {
-                int mLoc = content.getName().lastIndexOf(".") + 1;
-                if(mLoc != 0) {
-                    boolean found = service.checkExtension(
-                            content.getName().substring(mLoc)
-                                    .toLowerCase()
-                    );
-                    if(found) {
-                        serviceName = service.getName();
-                    }
-                }
+            ParserService service = registry.forFile(content);
+            if(service != null) {
+                serviceName = service.getName();
             }
         }
         try {
-            int state = indexer.checkForIndex(content.getAbsolutePath() + ":meta", content.lastModified());
+            int state = indexer.checkForIndex(content);
             if(state == 0) {
                 //Log.i(TAG, "Found index for " + content.getName() + "; skipping.");
-            } else if(state == 1) {
+                if(callback != null) {
+                    callback.indexCreated(content, 0);
+                }
+            } else if(state == 1 || state == -1) {
                 //Log.i(TAG, "Index for " + content.getName() + " out of date, building index");
-                try {
-                    new RemoteBuilder(
-                            content,
-                            serviceName, null);
-                    tasks++;
-                } catch(Exception e) {
-                    Log.e(TAG, "" + e.getMessage());
+                if(throttle) {
+                    crawlSlots.acquireUninterruptibly();
                 }
-            } else if(state == -1) {
-                //Log.i(TAG, "Index for " + content.getName() + " not found, building index");
+                // Counted before the builder starts so that the task is never finished before it
+                // is counted
+                tasks.incrementAndGet();
+                RemoteBuilder builder = new RemoteBuilder(content, serviceName, callback, throttle);
                 try {
-                    new RemoteBuilder(
-                            content,
-                            serviceName, null);
-                    tasks++;
+                    builder.start();
                 } catch(Exception e) {
                     Log.e(TAG, "" + e.getMessage());
+                    builder.finish(-1);
                 }
             }
         } catch(Exception e) {
@@ -380,21 +428,94 @@ public class IndexService extends Service {
         return mBinder;
     }
 
+    /**
+     * Pages of a file on their way from its parser service to an IndexWorker
+     * <p>
+     *     At most PAGE_BUDGET pages are held at once; the parser waits for the worker to write
+     *     pages before reading more, so a file of any size takes about the same memory. A stream
+     *     is only queued for a worker once its first PAGE_BUDGET pages or the end of the file
+     *     have been read, so workers aren't left waiting on a parser that is still reading.
+     * </p>
+     */
+    private static class PageStream {
+        /** Marks the end of the file; compared by identity */
+        static final String END = new String();
+        private final BlockingQueue<String> pages = new ArrayBlockingQueue<String>(PAGE_BUDGET);
+        private volatile boolean complete = false;
+        private volatile boolean abandoned = false;
+
+        /**
+         * Hands over the next page, waiting while PAGE_BUDGET pages are already held
+         * @param text The text of the page
+         * @return false if the worker has given up on the file; true otherwise
+         */
+        boolean put(String text) {
+            try {
+                while(!abandoned) {
+                    if(pages.offer(text != null ? text : "", ABANDON_CHECK, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                }
+            } catch(InterruptedException e) {
+                Log.e(TAG, "Error", e);
+            }
+            return false;
+        }
+
+        /**
+         * Hands over the next page if there is room for it without waiting
+         * @param text The text of the page
+         * @return true if the page was handed over; false if PAGE_BUDGET pages are already held
+         * or the worker has given up on the file
+         */
+        boolean offer(String text) {
+            return !abandoned && pages.offer(text != null ? text : "");
+        }
+
+        /**
+         * Marks the end of the file
+         * @param complete false if not every page of the file was read
+         */
+        void end(boolean complete) {
+            this.complete = complete;
+            this.put(END);
+        }
+
+        /**
+         * Takes the next page
+         * @return the text of the page; END once every page has been taken; null if no page
+         * arrived within PAGE_TIMEOUT
+         * @throws InterruptedException
+         */
+        String take() throws InterruptedException {
+            return pages.poll(PAGE_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+
+        boolean isComplete() {
+            return complete;
+        }
+
+        /**
+         * Stops the parser from handing over more pages
+         */
+        void abandon() {
+            abandoned = true;
+            pages.clear();
+        }
+    }
+
     private class Indexable {
-        private ArrayList<String> tmpData;
+        private PageStream stream;
         private File file;
-        private IBinder mService;
         private String serviceName = null;
         private RemoteBuilder builder;
         private IndexCallback callback;
 
-        public Indexable(ArrayList<String> tmpData, File file,
-                         IBinder mService, String serviceName, RemoteBuilder builder,
-                         IndexCallback callback) {
+        public Indexable(PageStream stream, File file, String serviceName,
+                         RemoteBuilder builder, IndexCallback callback) {
             super();
-            this.tmpData = tmpData;
+            this.stream = stream;
             this.file = file;
-            this.mService = mService;
             this.serviceName = serviceName;
             this.builder = builder;
             this.callback = callback;
@@ -402,90 +523,211 @@ public class IndexService extends Service {
 
     }
 
-    private class RemoteBuilder {
-        private ArrayList<String> tmpData;
+    private class RemoteBuilder implements ParserSession.Job {
         private File file;
-        private IBinder mService;
         private String serviceName = null;
         IndexCallback callback;
+        private final boolean throttled;
+        private final AtomicBoolean queued = new AtomicBoolean(false);
+        private final AtomicBoolean finished = new AtomicBoolean(false);
+        private PageStream stream;
 
-        public RemoteBuilder(File file, String serviceName, IndexCallback callback) {
+        public RemoteBuilder(File file, String serviceName, IndexCallback callback,
+                             boolean throttled) {
             this.file = file;
             this.serviceName = serviceName;
             this.callback = callback;
-            if(serviceName != null) {
-                this.doBindService(getApplicationContext());
-            } else {
-                pIndexes.add(new Indexable(null, file, null,
-                        null, RemoteBuilder.this, callback));
-            }
+            this.throttled = throttled;
         }
 
         /**
-         * Binds the builders service to the given context
-         * @param context
+         * Gets the file's contents through the session with its parser service, or queues it
+         * to be indexed by name if it has none
          */
-        void doBindService(Context context) {
-            // Establish a connection with the service. We use an explicit
-            // class name because we want a specific service implementation that
-            // we know will be running in our own process (and thus won't be
-            // supporting component replacement by other applications).
-            Log.i(TAG, "Binding to service...");
-
+        public void start() {
             if(serviceName == null) {
-                return;
+                this.queue(null);
+            } else if(!getSession(serviceName).submit(this)) {
+                this.finish(-1);
             }
-            if(context.bindService(new Intent(serviceName), mConnection,
-                    Context.BIND_AUTO_CREATE)) {
-                mIsBound++;
+        }
+
+        /**
+         * Queues the file to be written
+         * @param stream The pages of the file; null to index the file by name only
+         * @return false if the file was given up on before it was queued; true otherwise
+         */
+        private boolean queue(PageStream stream) {
+            // A file that was given up on stays finished
+            if(!finished.get() && queued.compareAndSet(false, true)) {
+                pIndexes.add(new Indexable(stream, file, serviceName, RemoteBuilder.this,
+                        callback));
+                return true;
             }
-            Log.i(TAG, "Service is bound = " + mIsBound);
+            return false;
         }
 
         /**
-         * Unbinds the service from the context
-         * @param context
+         * Marks the file as done, whether or not it was indexed; only the first call has any
+         * effect
+         * @param retval The result reported to the callback
          */
-        public void doUnbindService(Context context) {
-            if(mIsBound > 0) {
-                // Detach our existing connection.
-                context.unbindService(mConnection);
-                mIsBound--;
+        public void finish(int retval) {
+            if(!finished.compareAndSet(false, true)) {
+                return;
+            }
+            if(throttled) {
+                crawlSlots.release();
+            }
+            tasks.decrementAndGet();
+            if(callback != null) {
+                callback.indexCreated(file, retval);
             }
+            stopWhenDone();
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public void onStarted(int pages) {
+            this.stream = new PageStream();
         }
 
-        private ServiceConnection mConnection = new ServiceConnection() {
-            // Called when the connection with the service is established
-            public void onServiceConnected(ComponentName className,
-                                           IBinder service) {
-                mService = service;
-                Log.i(TAG, "Service: " + mService);
+        public boolean onPage(String text) {
+            if(stream == null) {
+                return false;
+            }
+            if(!queued.get()) {
+                if(stream.offer(text)) {
+                    return true;
+                }
+                // The first PAGE_BUDGET pages are ready, so a worker can start writing them
+                if(!this.queue(stream)) {
+                    return false;
+                }
+            }
+            return stream.put(text);
+        }
+
+        public void onParsed(boolean complete) {
+            if(stream != null) {
+                if(queued.get() || this.queue(stream)) {
+                    stream.end(complete);
+                }
+            } else {
+                // The service failed before reading any pages
+                this.queue(null);
+            }
+        }
+
+        public void onFailed() {
+            this.finish(-1);
+        }
+    }
+
+    /**
+     * Takes Indexables off of the queue and writes them to the index
+     * <p>
+     *     Several workers run at once and share the indexer. Workers block until there is work to
+     *     do. Once every submitted file has been indexed, stopWhenDone() queues stop; the first
+     *     worker to take it closes the indexer and stops the service, and each worker passes it
+     *     on before exiting.
+     * </p>
+     */
+    private class IndexWorker implements Runnable {
+        public void run() {
+            //Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while(true) {
+                Indexable tmp;
                 try {
-                    MClientService tmp = MClientService.Stub
-                            .asInterface(mService);
-                    tmp.loadFile(file.getAbsolutePath());
-                    tmpData = new ArrayList<String>();
-                    int pages = tmp.getPageCount(file.getAbsolutePath());
-                    for(int i = 0; i < pages; i++) {
-                        tmpData.add(tmp.getWordsForPage(i, file.getAbsolutePath()));
+                    tmp = pIndexes.take();
+                } catch(InterruptedException e1) {
+                    e1.printStackTrace();
+                    continue;
+                }
+                if(tmp == stop) {
+                    if(stopped.compareAndSet(false, true)) {
+                        this.close();
                     }
-                } catch(RemoteException e) {
-                    Log.e(TAG, "error", e);
+                    pIndexes.add(stop);
+                    return;
+                }
+                this.index(tmp);
+            }
+        }
+
+        /**
+         * Closes the indexer and stops the service
+         */
+        private void close() {
+            Log.i(TAG, "Done Indexing, Closing... ");
+            if(crawlFinished) {
+                indexer.crawlFinished();
+            }
+            if(isIdleAndCharging(IndexService.this) && indexer.maintain()) {
+                Log.i(TAG, "Merged index");
+            }
+            indexer.close();
+            closeSessions();
+            doneCrawling = false;
+            NotificationManager notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            notificationManager.cancel(1);
+            IndexService.this.stopSelf();
+        }
+
+        private void index(Indexable tmp) {
+            //Log.i(TAG, "Indexing: " + tmp.file.getAbsolutePath());
+            int retval = -1;
+            try {
+                if(tmp.stream == null) {
+                    retval = indexer.buildIndex(tmp.file.getAbsolutePath(), -1,
+                            tmp.callback != null);
+                } else {
+                    retval = this.write(tmp.file, tmp.stream, tmp.callback != null);
+                }
+                if(tmp.callback != null) {
+                    // The client is waiting to search this file so it was written to the main
+                    // index, even during a bulk load, and can't wait for the next group commit
+                    indexer.commit();
+                }
+            } catch(Exception e) {
+                Log.e(TAG, "Error ", e);
+            } finally {
+                if(tmp.stream != null) {
+                    tmp.stream.abandon();
                 }
-                // build();
-                pIndexes.add(new Indexable(tmpData, file, mService,
-                        serviceName, RemoteBuilder.this, callback));
-                doUnbindService(getApplicationContext());
+                tmp.builder.finish(retval);
             }
+        }
 
-            // Called when the connection with the service disconnects
-            // unexpectedly
-            public void onServiceDisconnected(ComponentName className) {
-                Log.e(TAG, "Service has unexpectedly disconnected");
-                mService = null;
-                mIsBound--;
+        /**
+         * Writes each page of a file as soon as its parser hands it over
+         * @param file The file being written
+         * @param stream The pages of the file
+         * @param direct true if the file must go into the main index even during a bulk load
+         * @return 0 upon successful index creation; -1 otherwise
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        private int write(File file, PageStream stream, boolean direct) throws IOException,
+                InterruptedException {
+            boolean write = indexer.startFile(file, direct);
+            int page = 0;
+            String text;
+            while((text = stream.take()) != PageStream.END) {
+                if(text == null) {
+                    Log.e(TAG, "Timed out waiting for page " + page + " of " + file.getName());
+                    return -1;
+                }
+                if(write) {
+                    indexer.buildPage(file, page, text, direct);
+                }
+                page++;
             }
-        };
+            // Files that could only be partly read are indexed with the pages that were read
+            return indexer.finishFile(file, stream.isComplete() || page > 0 ? page : -1, direct);
+        }
     }
 
     public class LocalBinder extends Binder {
@@ -495,6 +737,6 @@ public class IndexService extends Service {
     }
 
     public boolean isIndexing(){
-        return tasks != 0;
+        return tasks.get() != 0;
     }
 }
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2014 Dracode Software.
+ *
+ * This file is part of AIS.
+ *
+ * AIS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * AIS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AIS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.dracode.ais.service;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/*
+ * PackageReceiver.java
+ *
+ * Makes the indexer search for parser services again the next time it starts after a package
+ * is installed, updated or removed, as the package may add or remove a parser service
+ */
+public class PackageReceiver extends BroadcastReceiver {
+
+    /**
+     * Invalidates the saved parser services
+     * @param context
+     * @param intent
+     */
+    public void onReceive(Context context, Intent intent) {
+        ParserRegistry.invalidate(context);
+    }
+}
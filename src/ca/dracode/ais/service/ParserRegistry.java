@@ -0,0 +1,270 @@
+/*
+ * Copyright 2014 Dracode Software.
+ *
+ * This file is part of AIS.
+ *
+ * AIS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * AIS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AIS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.dracode.ais.service;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+ * ParserRegistry.java
+ *
+ * The parser services found from the info (.is) files written by the client library, and the
+ * file extensions that each one handles.
+ *
+ * The services are saved to the app's private storage along with modification times, so the
+ * directory tree is only searched again when one of them has changed or when a package is
+ * installed, updated or removed (see PackageReceiver). Only the data directory of each package,
+ * the directories that held an info file and the info files themselves are checked, as the rest
+ * of the tree is mostly caches that change all the time. This app's own directories are never
+ * searched.
+ */
+class ParserRegistry {
+    private static final String TAG = "ca.dracode.ais.service.ParserRegistry";
+    private static final String CACHE_FILE = "parsers.cache";
+    /** Changed whenever the layout of the cache file changes */
+    private static final int CACHE_VERSION = 1;
+    /** The name that every directory of this app's own data starts with */
+    private static final String OWN_DATA = "ca.dracode.ais";
+
+    private final File root;
+    private final File cache;
+    private ArrayList<ParserService> services = new ArrayList<ParserService>();
+    private HashMap<String, Long> stamps = new HashMap<String, Long>();
+    private final HashMap<String, ParserService> extensions = new HashMap<String, ParserService>();
+
+    /**
+     * @param context The context whose private storage holds the cache
+     * @param root The directory that info files are searched for in
+     */
+    ParserRegistry(Context context, File root) {
+        this(new File(context.getFilesDir(), CACHE_FILE), root);
+    }
+
+    /**
+     * @param cache The file that the services are saved to
+     * @param root The directory that info files are searched for in
+     */
+    ParserRegistry(File cache, File root) {
+        this.root = root;
+        this.cache = cache;
+    }
+
+    /**
+     * Makes the next load search the directory tree again
+     * @param context The context whose private storage holds the cache
+     */
+    static void invalidate(Context context) {
+        File cache = new File(context.getFilesDir(), CACHE_FILE);
+        if(cache.exists() && !cache.delete()) {
+            Log.e(TAG, "Could not delete " + cache);
+        }
+    }
+
+    /**
+     * Loads the parser services from the cache if it is still valid; otherwise searches the
+     * directory tree and saves what was found
+     */
+    public void load() {
+        if(!this.readCache()) {
+            long start = System.currentTimeMillis();
+            this.services = new ArrayList<ParserService>();
+            this.stamps = new HashMap<String, Long>();
+            this.scan(root);
+            Log.i(TAG, "Found " + services.size() + " parser services in "
+                    + (System.currentTimeMillis() - start) + "ms");
+            this.writeCache();
+        }
+        extensions.clear();
+        for(ParserService service : services) {
+            if(service.getName() == null) {
+                continue;
+            }
+            // Later services take precedence, as they always have
+            for(String ext : service.getExtensions()) {
+                extensions.put(ext.toLowerCase(Locale.ROOT), service);
+            }
+        }
+    }
+
+    /**
+     * Gets the parser service for a file
+     * @param file The file to be parsed
+     * @return the service that handles the file's extension; null if there is none
+     */
+    public ParserService forFile(File file) {
+        String name = file.getName();
+        int mLoc = name.lastIndexOf('.') + 1;
+        if(mLoc == 0) {
+            return null;
+        }
+        return extensions.get(name.substring(mLoc).toLowerCase(Locale.ROOT));
+    }
+
+    private void stamp(File file) {
+        stamps.put(file.getAbsolutePath(), file.lastModified());
+    }
+
+    /**
+     * Retrieves service information from files found in the directory passed and all of its
+     * subdirectories
+     * @param directory directory to be searched
+     */
+    private void scan(File directory) {
+        File[] contents = directory.listFiles();
+        if(contents == null) {
+            return;
+        }
+        boolean found = false;
+        for(File content : contents) {
+            if(!content.canRead()) {
+                continue;
+            }
+            if(content.isDirectory()) {
+                if(directory.equals(root)) {
+                    // The index and its side directories change on every crawl and never hold
+                    // an info file
+                    if(content.getName().startsWith(OWN_DATA)) {
+                        continue;
+                    }
+                    this.stamp(content);
+                }
+                this.scan(content);
+            } else if(content.getName().toLowerCase(Locale.ROOT).endsWith(".is")) {
+                this.stamp(content);
+                found = true;
+                ParserService service = read(content);
+                if(service != null) {
+                    services.add(service);
+                }
+            }
+        }
+        if(found) {
+            this.stamp(directory);
+        }
+    }
+
+    /**
+     * Reads an info file, which holds the name of the service on its first line followed by one
+     * extension per line
+     * @param file The info file
+     * @return the service described by the file; null if it can't be read
+     */
+    private static ParserService read(File file) {
+        BufferedReader br = null;
+        try {
+            br = new BufferedReader(new FileReader(file));
+            String name = br.readLine();
+            Log.i(TAG, "Found service of name: " + name);
+            ArrayList<String> tmpExt = new ArrayList<String>();
+            if(name != null) {
+                String tmp;
+                while((tmp = br.readLine()) != null) {
+                    tmpExt.add(tmp);
+                }
+            }
+            return new ParserService(name, tmpExt);
+        } catch(IOException e) {
+            Log.e(TAG, "Error while reading " + file, e);
+            return null;
+        } finally {
+            if(br != null) {
+                try {
+                    br.close();
+                } catch(IOException e) {
+                    Log.e(TAG, "Error ", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the saved services if none of the directories they were found in have changed
+     * @return true if the services were read; false if they have to be searched for again
+     */
+    @SuppressWarnings("unchecked")
+    private boolean readCache() {
+        if(!cache.exists()) {
+            return false;
+        }
+        ObjectInputStream in = null;
+        try {
+            in = new ObjectInputStream(new FileInputStream(cache));
+            if(in.readInt() != CACHE_VERSION || !root.getAbsolutePath().equals(in.readUTF())) {
+                return false;
+            }
+            HashMap<String, Long> savedStamps = (HashMap<String, Long>) in.readObject();
+            for(Map.Entry<String, Long> e : savedStamps.entrySet()) {
+                if(new File(e.getKey()).lastModified() != e.getValue()) {
+                    Log.i(TAG, e.getKey() + " has changed, searching for parser services");
+                    return false;
+                }
+            }
+            this.services = (ArrayList<ParserService>) in.readObject();
+            this.stamps = savedStamps;
+            return true;
+        } catch(Exception e) {
+            Log.e(TAG, "Error while reading parser cache", e);
+            return false;
+        } finally {
+            if(in != null) {
+                try {
+                    in.close();
+                } catch(IOException e) {
+                    Log.e(TAG, "Error ", e);
+                }
+            }
+        }
+    }
+
+    private void writeCache() {
+        ObjectOutputStream out = null;
+        try {
+            out = new ObjectOutputStream(new FileOutputStream(cache));
+            out.writeInt(CACHE_VERSION);
+            out.writeUTF(root.getAbsolutePath());
+            out.writeObject(stamps);
+            out.writeObject(services);
+        } catch(IOException e) {
+            Log.e(TAG, "Error while saving parser cache", e);
+            cache.delete();
+        } finally {
+            if(out != null) {
+                try {
+                    out.close();
+                } catch(IOException e) {
+                    Log.e(TAG, "Error ", e);
+                }
+            }
+        }
+    }
+}
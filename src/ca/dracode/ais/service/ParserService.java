@@ -28,6 +28,7 @@ import java.util.List;
  */
 
 public class ParserService implements Serializable {
+    private static final long serialVersionUID = 1L;
     private String name;
     private List<String> extensions;
 
@@ -45,6 +46,10 @@ public class ParserService implements Serializable {
         return name;
     }
 
+    public List<String> getExtensions() {
+        return extensions;
+    }
+
     /**
      * Checks to see if this ParserService can handle the given extension
      * @param ext The extension that needs to be parsed
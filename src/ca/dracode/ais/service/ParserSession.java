@@ -0,0 +1,378 @@
+/*
+ * Copyright 2014 Dracode Software.
+ *
+ * This file is part of AIS.
+ *
+ * AIS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * AIS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AIS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.dracode.ais.service;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import ca.dracode.ais.indexclient.MClientService;
+import ca.dracode.ais.indexinfo.ParserTransfer1_0;
+
+/*
+ * ParserSession.java
+ *
+ * A single binding to a parser service that every file handled by the service is parsed
+ * through. Files are parsed one at a time on the session's own thread, so remote calls never
+ * block the thread that submitted them, and each page is handed to its Job as soon as it is
+ * read. The binding is kept while there are files to parse and
+ * released once the session has been idle for IDLE_TIMEOUT; the next file binds again.
+ *
+ * Services that implement ParserTransfer1_0 send pages in batches of up to PAGE_BATCH pages or
+ * BATCH_CHARS characters; every other service is read one page per call through MClientService.
+ * Each service is first bound with an Intent carrying CATEGORY_PAGE_TRANSFER, which only
+ * services that implement ParserTransfer1_0 declare, and then without it. A service therefore
+ * keeps returning MClientService to clients that don't know about the new interface.
+ */
+class ParserSession {
+    private static final String TAG = "ca.dracode.ais.service.ParserSession";
+    /** The time, in milliseconds, that the binding is kept after the last file is parsed */
+    static final long IDLE_TIMEOUT = 10000;
+    /** The time, in milliseconds, to wait for the service to connect before giving up */
+    static final long BIND_TIMEOUT = 10000;
+    /** The maximum number of pages requested from a ParserTransfer1_0 service at once */
+    static final int PAGE_BATCH = 64;
+    /**
+     * The number of characters after which a batch is ended, which keeps each reply well under
+     * the binder's transaction buffer
+     */
+    static final int BATCH_CHARS = 128 * 1024;
+    /**
+     * The category of the Intent used to bind to a service for ParserTransfer1_0. A category,
+     * unlike an extra, is part of the Intent's identity, so the system keeps a separate binder
+     * for it.
+     */
+    static final String CATEGORY_PAGE_TRANSFER = "ca.dracode.ais.category.PAGE_TRANSFER_1_0";
+
+    /**
+     * A file waiting to be parsed
+     */
+    interface Job {
+        File getFile();
+
+        /**
+         * Called on the session's thread once the file has been loaded by the service
+         * @param pages The number of pages in the file
+         */
+        void onStarted(int pages);
+
+        /**
+         * Called on the session's thread for each page in order; may block until the page can
+         * be accepted
+         * @param text The text of the page
+         * @return true to continue with the next page; false to stop parsing the file
+         */
+        boolean onPage(String text);
+
+        /**
+         * Called on the session's thread once no more pages will be given for the file
+         * @param complete false if the service failed before every page was read
+         */
+        void onParsed(boolean complete);
+
+        /**
+         * Called if the file can't be parsed because the service could not be reached
+         */
+        void onFailed();
+    }
+
+    private final Context context;
+    private final String serviceName;
+    private final LinkedBlockingQueue<Job> jobs = new LinkedBlockingQueue<Job>();
+    private IBinder service;
+    /** Whether the connected service implements ParserTransfer1_0; null until checked */
+    private Boolean bulk;
+    private boolean bound = false;
+    private boolean closed = false;
+    private Thread thread;
+
+    private final ServiceConnection connection = new ServiceConnection() {
+        public void onServiceConnected(ComponentName className, IBinder binder) {
+            synchronized(ParserSession.this) {
+                service = binder;
+                bulk = null;
+                ParserSession.this.notifyAll();
+            }
+        }
+
+        public void onServiceDisconnected(ComponentName className) {
+            // The binding is kept, so the system reconnects once the service restarts
+            Log.e(TAG, serviceName + " has unexpectedly disconnected");
+            synchronized(ParserSession.this) {
+                service = null;
+            }
+        }
+    };
+
+    /**
+     * @param context The context that binds to the service
+     * @param serviceName The action of the parser service's Intent
+     */
+    ParserSession(Context context, String serviceName) {
+        this.context = context;
+        this.serviceName = serviceName;
+    }
+
+    /**
+     * Queues a file to be parsed, starting the session if it is idle
+     * @param job The file to parse
+     * @return false if the session has been closed; true otherwise
+     */
+    public synchronized boolean submit(Job job) {
+        if(closed) {
+            return false;
+        }
+        jobs.add(job);
+        if(thread == null) {
+            thread = new Thread(new Runnable() {
+                public void run() {
+                    ParserSession.this.run();
+                }
+            }, "AIS-Parser-" + serviceName);
+            thread.start();
+        }
+        return true;
+    }
+
+    /**
+     * Unbinds from the service and fails every file that has not been parsed
+     */
+    public void close() {
+        Thread t;
+        synchronized(this) {
+            closed = true;
+            this.unbind();
+            t = thread;
+            this.notifyAll();
+        }
+        if(t != null) {
+            t.interrupt();
+        }
+        this.failAll();
+    }
+
+    private void run() {
+        while(true) {
+            Job job = null;
+            try {
+                job = jobs.poll(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch(InterruptedException e) {
+                // Closed; checked below
+            }
+            if(job == null) {
+                synchronized(this) {
+                    if(jobs.isEmpty() || closed) {
+                        Log.i(TAG, "Releasing idle session with " + serviceName);
+                        this.unbind();
+                        thread = null;
+                        break;
+                    }
+                }
+                continue;
+            }
+            IBinder client = this.connect();
+            if(client == null) {
+                job.onFailed();
+                // The service can't be reached, so the rest of the files would only wait out
+                // the same timeout
+                this.failAll();
+                continue;
+            }
+            if(this.isBulk(client)) {
+                parseBatches(ParserTransfer1_0.Stub.asInterface(client), job);
+            } else {
+                parse(MClientService.Stub.asInterface(client), job);
+            }
+        }
+        this.failAll();
+    }
+
+    private void failAll() {
+        Job job;
+        while((job = jobs.poll()) != null) {
+            job.onFailed();
+        }
+    }
+
+    /**
+     * Binds to the service if necessary and waits for it to connect
+     * @return the service's binder; null if it could not be bound or did not connect in time
+     */
+    private synchronized IBinder connect() {
+        if(closed) {
+            return null;
+        }
+        if(!bound) {
+            Log.i(TAG, "Binding to " + serviceName);
+            Intent intent = new Intent(serviceName);
+            intent.addCategory(CATEGORY_PAGE_TRANSFER);
+            bound = context.bindService(intent, connection, Context.BIND_AUTO_CREATE);
+            if(!bound) {
+                // The service doesn't declare the category, so it only offers MClientService
+                bound = context.bindService(new Intent(serviceName), connection,
+                        Context.BIND_AUTO_CREATE);
+            }
+            if(!bound) {
+                Log.e(TAG, "Could not bind to " + serviceName);
+                return null;
+            }
+        }
+        long deadline = System.currentTimeMillis() + BIND_TIMEOUT;
+        long remaining;
+        while(service == null && !closed
+                && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            try {
+                this.wait(remaining);
+            } catch(InterruptedException e) {
+                break;
+            }
+        }
+        if(service == null) {
+            Log.e(TAG, "Timed out waiting for " + serviceName);
+            this.unbind();
+            return null;
+        }
+        return service;
+    }
+
+    /**
+     * Checks which interface the connected service implements
+     * <p>
+     *     A service bound with CATEGORY_PAGE_TRANSFER should return ParserTransfer1_0, but the
+     *     binder is checked anyway so that a service that declares the category by mistake
+     *     is still read through MClientService
+     * </p>
+     * @param binder The binder returned by connect()
+     * @return true if the service implements ParserTransfer1_0; false otherwise
+     */
+    private boolean isBulk(IBinder binder) {
+        synchronized(this) {
+            if(bulk != null && binder == service) {
+                return bulk;
+            }
+        }
+        boolean result;
+        try {
+            result = ParserTransfer1_0.Stub.DESCRIPTOR.equals(binder.getInterfaceDescriptor());
+        } catch(RemoteException e) {
+            result = false;
+        }
+        Log.i(TAG, serviceName + (result ? " supports" : " does not support")
+                + " batched page transfer");
+        synchronized(this) {
+            if(binder == service) {
+                bulk = result;
+            }
+        }
+        return result;
+    }
+
+    private void unbind() {
+        if(bound) {
+            context.unbindService(connection);
+            bound = false;
+            service = null;
+        }
+    }
+
+    /**
+     * Reads the text of every page of a file and hands each one to the job
+     * @param client The connected parser service
+     * @param job The file to parse
+     */
+    private static void parse(MClientService client, Job job) {
+        String path = job.getFile().getAbsolutePath();
+        boolean complete = false;
+        try {
+            client.loadFile(path);
+            int count = client.getPageCount(path);
+            job.onStarted(count);
+            int i = 0;
+            while(i < count && job.onPage(client.getWordsForPage(i, path))) {
+                i++;
+            }
+            complete = i == count;
+        } catch(RemoteException e) {
+            Log.e(TAG, "error", e);
+        }
+        job.onParsed(complete);
+    }
+
+    /**
+     * Reads the pages of a file in batches and hands each one to the job
+     * @param client The connected parser service
+     * @param job The file to parse
+     */
+    private static void parseBatches(ParserTransfer1_0 client, Job job) {
+        String path = job.getFile().getAbsolutePath();
+        boolean complete = false;
+        try {
+            int count = client.openFile(path);
+            if(count >= 0) {
+                try {
+                    job.onStarted(count);
+                    int i = 0;
+                    boolean stopped = false;
+                    while(i < count && !stopped) {
+                        List<String> pages = client.getPages(path, i,
+                                Math.min(PAGE_BATCH, count - i), BATCH_CHARS);
+                        if(pages == null || pages.isEmpty()) {
+                            break;
+                        }
+                        for(int j = 0; j < pages.size() && i < count && !stopped; j++) {
+                            stopped = !job.onPage(pages.get(j));
+                            if(!stopped) {
+                                i++;
+                            }
+                        }
+                    }
+                    complete = i == count;
+                } finally {
+                    closeFile(client, path);
+                }
+            }
+        } catch(RemoteException e) {
+            Log.e(TAG, "error", e);
+        }
+        job.onParsed(complete);
+    }
+
+    /**
+     * Releases a file loaded with ParserTransfer1_0.openFile
+     * @param client The connected parser service
+     * @param path The absolute path of the file
+     */
+    private static void closeFile(ParserTransfer1_0 client, String path) {
+        try {
+            client.closeFile(path);
+        } catch(RemoteException e) {
+            Log.e(TAG, "Error while closing " + path, e);
+        }
+    }
+}
@@ -18,6 +18,8 @@
  */
 package ca.dracode.ais.service;
 import java.util.ArrayList;
+
+import ca.dracode.ais.indexer.FileSearcher;
 /*
 * SearchData.java
 *
@@ -27,4 +29,8 @@ import java.util.ArrayList;
 public class SearchData {
     int pages;
     ArrayList<String> text = new ArrayList<String>();
+    /** Searches the file's pages in memory; null if the file is searched in the main index */
+    FileSearcher searcher;
+    /** The memory used by searcher, in bytes */
+    long memory;
 }
\ No newline at end of file
@@ -24,7 +24,9 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.content.SharedPreferences;
 import android.os.IBinder;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 import org.apache.lucene.document.Document;
@@ -32,24 +34,31 @@ import org.apache.lucene.index.IndexableField;
 
 import java.io.File;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import ca.dracode.ais.indexdata.SearchResult;
 import ca.dracode.ais.indexer.FileIndexer;
 import ca.dracode.ais.indexer.FileSearcher;
+import ca.dracode.ais.indexer.SearcherProvider;
 
 /**
  * 	SearchService.java
  *
  * 	Service accessed by the client library with functions to search through the index
+ *
+ * 	Files that are loaded are copied into an index in memory, which is used for searches of
+ * 	that file alone until it is unloaded. Multi-file searches always use the index on disk.
  */
 
-// TODO - Make the indexer search from disk for multi-file searches and search from memory
-// for single file searches (create new index in RAMDirectory and add appropriate documents in
-// the load function).
-
 public class SearchService extends Service implements IndexService.IndexCallback {
     private static final String TAG = "ca.dracode.ais.service.SearchService";
+    /** The memory, in bytes, that the in-memory index of a single file may use */
+    private static final long MAX_FILE_MEMORY = 8 * 1024 * 1024;
+    /** The memory, in bytes, that the in-memory indexes of every loaded file may use */
+    private static final long MAX_MEMORY = 32 * 1024 * 1024;
     int currentId = 0;
     HashMap<File, Integer> builtIndexes;
     private final BSearchService1_0.Stub mBinder = new BSearchService1_0.Stub() {
@@ -102,7 +111,8 @@ public class SearchService extends Service implements IndexService.IndexCallback
     private boolean mIsBound = false;
 
     // private final IBinder mBinder = new LocalBinder();
-    private HashMap<String, SearchData> data;
+    private LinkedHashMap<String, SearchData> data;
+    private long memory = 0;
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -112,8 +122,14 @@ public class SearchService extends Service implements IndexService.IndexCallback
     @Override
     public void onCreate() {
         super.onCreate();
+        SearcherProvider provider = SearcherProvider.get();
+        if(provider != null) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+            provider.setParallel(prefs.getBoolean("parallel_search", true));
+        }
         this.sm = new SearchManager();
-        this.data = new HashMap<String, SearchData>();
+        // Access order, so that the least recently searched files are evicted from memory first
+        this.data = new LinkedHashMap<String, SearchData>(16, 0.75f, true);
         this.builtIndexes = new HashMap<File, Integer>();
         verifyIndex();
     }
@@ -178,6 +194,9 @@ public class SearchService extends Service implements IndexService.IndexCallback
 
     /**
      * Tells the indexer to load a file's metadata into memory for use in searches.
+     * The file's pages are also copied into an index in memory if they fit within
+     * MAX_FILE_MEMORY; files that were loaded less recently are dropped from memory, but stay
+     * loaded, to keep the total within MAX_MEMORY.
      * The function can be called multiple times to load several files. Files remain loaded until the unload
      * function is called. Please make sure to call unload when you are finished with the document.
      * @param filePath - the location of the file to prepare; is also the identifier for the file's data in the index
@@ -188,8 +207,10 @@ public class SearchService extends Service implements IndexService.IndexCallback
      */
     public int load(final String filePath) {
         this.verifyIndex();
-        if(this.data.containsKey(filePath)) {
-            return 1;
+        synchronized(this.data) {
+            if(this.data.containsKey(filePath)) {
+                return 1;
+            }
         }
         SearchData tmpData = new SearchData();
         Document tmp;
@@ -212,7 +233,23 @@ public class SearchService extends Service implements IndexService.IndexCallback
                 Log.e(TAG, "Error", e);
                 return -1;
             }
-            this.data.put(filePath, tmpData);
+            tmpData.searcher = this.sm.searcher.loadFile(new File(filePath).getAbsolutePath(),
+                    Math.min(MAX_FILE_MEMORY, MAX_MEMORY));
+            synchronized(this.data) {
+                if(this.data.containsKey(filePath)) {
+                    // Loaded by another client in the meantime
+                    if(tmpData.searcher != null) {
+                        tmpData.searcher.close();
+                    }
+                    return 1;
+                }
+                if(tmpData.searcher != null) {
+                    tmpData.memory = tmpData.searcher.getMemoryUsage();
+                    this.memory += tmpData.memory;
+                }
+                this.data.put(filePath, tmpData);
+                this.trimMemory(tmpData);
+            }
             return 0;
         } else {
             return 2;
@@ -226,7 +263,70 @@ public class SearchService extends Service implements IndexService.IndexCallback
      * @return true if the file exists in the index; false otherwise
      */
     public boolean unload(String path) {
-        return this.data.remove(path) != null;
+        SearchData d;
+        synchronized(this.data) {
+            d = this.data.remove(path);
+            if(d == null) {
+                return false;
+            }
+            this.memory -= d.memory;
+        }
+        if(d.searcher != null) {
+            d.searcher.close();
+        }
+        return true;
+    }
+
+    /**
+     * Drops the in-memory indexes of the least recently searched files until the memory used
+     * is within MAX_MEMORY
+     * <p>
+     *     Must be called while holding the lock on data
+     * </p>
+     * @param keep The file that should stay in memory; it is only dropped if it doesn't fit
+     *             within MAX_MEMORY on its own
+     */
+    private void trimMemory(SearchData keep) {
+        Iterator<SearchData> it = this.data.values().iterator();
+        while(this.memory > MAX_MEMORY && it.hasNext()) {
+            SearchData d = it.next();
+            if(d != keep && d.searcher != null) {
+                Log.i(TAG, "Dropping a loaded file from memory, " + this.memory + " bytes in use");
+                this.dropSearcher(d);
+            }
+        }
+        if(this.memory > MAX_MEMORY && keep.searcher != null) {
+            this.dropSearcher(keep);
+        }
+    }
+
+    /**
+     * Closes the in-memory index of a loaded file; searches of the file use the index on disk
+     * from then on
+     * <p>
+     *     Must be called while holding the lock on data
+     * </p>
+     * @param d The loaded file
+     */
+    private void dropSearcher(SearchData d) {
+        if(d.searcher != null) {
+            d.searcher.close();
+            d.searcher = null;
+        }
+        this.memory -= d.memory;
+        d.memory = 0;
+    }
+
+    /**
+     * Gets the searcher for a file's in-memory index
+     * @param path The path the file was loaded with
+     * @return the file's searcher; null if the file is not in memory
+     */
+    private FileSearcher getLoadedSearcher(String path) {
+        synchronized(this.data) {
+            SearchData d = this.data.get(path);
+            return d != null ? d.searcher : null;
+        }
     }
 
     private class SearchManager {
@@ -242,7 +342,15 @@ public class SearchService extends Service implements IndexService.IndexCallback
          *  Tells the search service to cancel any searches that are currently running
          */
         private boolean interrupt(int id) {
-            return searcher.interrupt(id);
+            boolean interrupted = searcher.interrupt(id);
+            synchronized(data) {
+                for(SearchData d : data.values()) {
+                    if(d.searcher != null) {
+                        interrupted |= d.searcher.interrupt(id);
+                    }
+                }
+            }
+            return interrupted;
         }
 
         /**
@@ -280,10 +388,16 @@ public class SearchService extends Service implements IndexService.IndexCallback
 
         private SearchResult find(int id, String term, String constrainValue, int maxResults,
                                   int type, int set, int page) {
-            /**
-             * TODO - Preload information about the index in the load function for use here
-             * **/
             Log.i(TAG, "Received request to search for: " + term);
+            FileSearcher loaded = getLoadedSearcher(constrainValue);
+            if(loaded != null) {
+                SearchResult result = loaded.findInFile(id, term, "text",
+                        new File(constrainValue).getAbsolutePath(), "path", maxResults, set, type,
+                        page);
+                if(result != null) {
+                    return result;
+                }
+            }
             return this.searcher.findInFile(id, term, "text",
                     constrainValue, "path", maxResults, set, type, page);
         }
@@ -301,6 +415,17 @@ public class SearchService extends Service implements IndexService.IndexCallback
     }
 
     public void indexCreated(File content, int retval){
+        // A loaded copy of the file still holds its old pages
+        String path = content.getAbsolutePath();
+        synchronized(this.data) {
+            for(Map.Entry<String, SearchData> e : this.data.entrySet()) {
+                if(e.getValue().searcher != null
+                        && new File(e.getKey()).getAbsolutePath().equals(path)) {
+                    Log.i(TAG, "Dropping the in-memory copy of " + path + ", it was reindexed");
+                    this.dropSearcher(e.getValue());
+                }
+            }
+        }
         this.builtIndexes.put(content, retval);
     }
 }
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2014 Dracode Software.
+ *
+ * This file is part of AIS.
+ *
+ * AIS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * AIS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AIS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.dracode.ais.service;
+
+import android.app.SearchManager;
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+
+import java.util.List;
+
+import ca.dracode.ais.indexer.FileSearcher;
+import ca.dracode.ais.indexer.Suggester;
+
+/**
+ * SuggestionProvider.java
+ *
+ * Answers search box suggestions, and prefix lookups from clients, by completing the last word of
+ * a query from the terms and file names in the index. Queries are of the form
+ * content://ca.dracode.ais.suggest/search_suggest_query/[query]?limit=[n]; each row contains the
+ * completed query, which is also the query that is searched when the suggestion is chosen.
+ *
+ * Spelling corrections of a query are answered for
+ * content://ca.dracode.ais.suggest/spelling/[query], with a single row containing the corrected
+ * query if any of its words were not found in the index.
+ */
+public class SuggestionProvider extends ContentProvider {
+    public static final String AUTHORITY = "ca.dracode.ais.suggest";
+    private static final int DEFAULT_LIMIT = 10;
+    private static final String PATH_SPELLING = "spelling";
+    private static final String[] COLUMNS = {BaseColumns._ID,
+            SearchManager.SUGGEST_COLUMN_TEXT_1, SearchManager.SUGGEST_COLUMN_QUERY};
+    private FileSearcher searcher;
+
+    @Override
+    public boolean onCreate() {
+        // The suggester is created on the first query as the index directory may not exist yet
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder) {
+        MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        String query = uri.getPathSegments().size() > 1 ? uri.getLastPathSegment() : null;
+        if(query == null && selectionArgs != null && selectionArgs.length > 0) {
+            query = selectionArgs[0];
+        }
+        if(query == null) {
+            return cursor;
+        }
+        if(PATH_SPELLING.equals(uri.getPathSegments().get(0))) {
+            String spelling = this.getSearcher().suggestSpelling(query, "text");
+            if(spelling != null) {
+                cursor.addRow(new Object[]{0, spelling, spelling});
+            }
+            return cursor;
+        }
+        Suggester suggester = Suggester.get();
+        if(suggester == null) {
+            return cursor;
+        }
+        int limit = DEFAULT_LIMIT;
+        try {
+            String param = uri.getQueryParameter(SearchManager.SUGGEST_PARAMETER_LIMIT);
+            if(param != null) {
+                limit = Integer.parseInt(param);
+            }
+        } catch(NumberFormatException e) {
+            // Keeps the default
+        }
+        // Only the word being typed is completed; the rest of the query is kept as it is
+        int split = query.lastIndexOf(' ') + 1;
+        String word = query.substring(split);
+        if(word.length() == 0) {
+            return cursor;
+        }
+        List<String> completions = suggester.lookup(word, limit);
+        for(int i = 0; i < completions.size(); i++) {
+            String suggestion = query.substring(0, split) + completions.get(i);
+            cursor.addRow(new Object[]{i, suggestion, suggestion});
+        }
+        return cursor;
+    }
+
+    private synchronized FileSearcher getSearcher() {
+        if(searcher == null) {
+            searcher = new FileSearcher(getContext());
+        }
+        return searcher;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return SearchManager.SUGGEST_MIME_TYPE;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014 Dracode Software.
+ *
+ * This file is part of AIS.
+ *
+ * AIS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * AIS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AIS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.dracode.ais.indexer;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FileIndexerTest {
+    private static final long MAX_BYTES = 1024 * 1024;
+    /** The number of distinct words on each page written by commitsAfterMaxBytes */
+    private static final int PAGE_WORDS = 1000;
+    /** More pages than are needed to buffer MAX_BYTES */
+    private static final int MAX_PAGES = 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private RAMDirectory dir;
+    private FileIndexer indexer;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = new RAMDirectory();
+        indexer = new FileIndexer(dir, 1);
+        file = folder.newFile("a.txt");
+    }
+
+    @After
+    public void tearDown() {
+        indexer.close();
+        dir.close();
+    }
+
+    @Test
+    public void commitsAfterMaxDocs() throws IOException {
+        indexer.setCommitPolicy(3, 0, 0);
+        indexer.buildPage(file, 0, "one");
+        indexer.buildPage(file, 1, "two");
+        assertEquals(0, committedDocs());
+        indexer.buildPage(file, 2, "three");
+        assertEquals(3, committedDocs());
+    }
+
+    @Test
+    public void commitsAfterMaxBytes() throws IOException {
+        indexer.setCommitPolicy(0, MAX_BYTES, 0);
+        int page = 0;
+        while(committedDocs() == 0 && page < MAX_PAGES) {
+            StringBuilder text = new StringBuilder();
+            for(int i = 0; i < PAGE_WORDS; i++) {
+                text.append("w").append(Integer.toString(page * PAGE_WORDS + i, 26)).append(' ');
+            }
+            indexer.buildPage(file, page++, text.toString());
+        }
+        // The writer's own flushes never commit, so only the policy can have committed the pages
+        assertTrue(page > 1);
+        assertEquals(page, committedDocs());
+    }
+
+    @Test
+    public void commitsAfterMaxInterval() throws IOException, InterruptedException {
+        indexer.setCommitPolicy(0, 0, 500);
+        indexer.commit();
+        indexer.buildPage(file, 0, "one");
+        assertEquals(0, committedDocs());
+        Thread.sleep(600);
+        indexer.buildPage(file, 1, "two");
+        assertEquals(2, committedDocs());
+    }
+
+    @Test
+    public void closeCommitsPendingDocs() throws IOException {
+        indexer.setCommitPolicy(0, 0, 0);
+        indexer.buildPage(file, 0, "one");
+        assertEquals(0, indexer.finishFile(file, 1));
+        assertEquals(0, committedDocs());
+        indexer.close();
+        assertEquals(2, committedDocs());
+    }
+
+    /**
+     * Counts the Documents that a reader opened from the directory sees
+     * @return the number of committed Documents
+     * @throws IOException
+     */
+    private int committedDocs() throws IOException {
+        DirectoryReader reader = DirectoryReader.open(dir);
+        try {
+            return reader.numDocs();
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2014 Dracode Software.
+ *
+ * This file is part of AIS.
+ *
+ * AIS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * AIS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AIS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.dracode.ais.indexer;
+
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class FileSearcherTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private RAMDirectory dir;
+    private FileSearcher searcher;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = new RAMDirectory();
+        file = folder.newFile("a.txt");
+        FileIndexer indexer = new FileIndexer(dir, 1);
+        indexer.buildPage(file, 0, "The internationalization of software packages");
+        indexer.finishFile(file, 1);
+        indexer.close();
+        searcher = new FileSearcher(new SearcherProvider(dir));
+    }
+
+    @After
+    public void tearDown() {
+        searcher.close();
+        dir.close();
+    }
+
+    @Test
+    public void booleanSearchIgnoresCaseOfShortWords() {
+        assertEquals(Collections.singletonList(file.getPath()), find("SOFTWARE"));
+    }
+
+    @Test
+    public void booleanSearchIgnoresCaseOfLongWords() {
+        // Longer than AffixAnalyzer.MAX_GRAM, so it is matched with a WildcardQuery
+        assertEquals(Collections.singletonList(file.getPath()), find("Internationalization"));
+    }
+
+    @Test
+    public void booleanSearchIgnoresCaseOfMiddleWords() {
+        assertEquals(Collections.singletonList(file.getPath()), find("Of SOFTWARE Pack"));
+    }
+
+    private List<String> find(String term) {
+        return searcher.findName(0, term, "text", null, "path", 10, 0,
+                FileSearcher.QUERY_BOOLEAN);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2014 Dracode Software.
+ *
+ * This file is part of AIS.
+ *
+ * AIS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * AIS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AIS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.dracode.ais.indexer;
+
+import org.apache.lucene.analysis.core.SimpleAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IndexCatalogTest {
+
+    @Test
+    public void checkComparesModifiedTimes() {
+        IndexCatalog catalog = new IndexCatalog();
+        assertEquals(-1, catalog.check("/a.txt", 100));
+        catalog.put("/a.txt", 100, 3);
+        assertEquals(0, catalog.check("/a.txt", 100));
+        assertEquals(0, catalog.check("/a.txt", 50));
+        assertEquals(1, catalog.check("/a.txt", 101));
+        assertEquals(3, catalog.getPages("/a.txt"));
+        assertEquals(-1, catalog.getPages("/b.txt"));
+    }
+
+    @Test
+    public void putReplacesExistingEntry() {
+        IndexCatalog catalog = new IndexCatalog();
+        catalog.put("/a.txt", 100, 3);
+        catalog.put("/a.txt", 200, -1);
+        assertEquals(1, catalog.size());
+        assertEquals(0, catalog.check("/a.txt", 200));
+        assertEquals(-1, catalog.getPages("/a.txt"));
+    }
+
+    @Test
+    public void keepsEveryEntryAcrossGrowthAndRemoval() {
+        IndexCatalog catalog = new IndexCatalog();
+        int files = 10000;
+        for(int i = 0; i < files; i++) {
+            catalog.put("/dir/file" + i, i, i % 7);
+        }
+        assertEquals(files, catalog.size());
+        // Removing every other file shifts the rest of their clusters back
+        for(int i = 0; i < files; i += 2) {
+            assertTrue(catalog.remove("/dir/file" + i));
+        }
+        assertFalse(catalog.remove("/dir/file0"));
+        assertEquals(files / 2, catalog.size());
+        for(int i = 0; i < files; i++) {
+            String path = "/dir/file" + i;
+            if(i % 2 == 0) {
+                assertFalse(path, catalog.contains(path));
+            } else {
+                assertEquals(path, 0, catalog.check(path, i));
+                assertEquals(path, i % 7, catalog.getPages(path));
+            }
+        }
+        catalog.clear();
+        assertEquals(0, catalog.size());
+        assertFalse(catalog.contains("/dir/file1"));
+    }
+
+    @Test
+    public void loadReadsMetadataDocuments() throws IOException {
+        RAMDirectory dir = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_47,
+                new SimpleAnalyzer(Version.LUCENE_47)));
+        writer.addDocument(meta("/a.txt", 100, 2));
+        writer.addDocument(meta("/b.txt", 200, -1));
+        writer.addDocument(meta("/c.txt", 300, 5));
+        writer.deleteDocuments(new Term("id", "/c.txt:meta"));
+        // A page Document, which must not be taken for a file
+        Document page = new Document();
+        page.add(new StringField("id", "/a.txt:0", Field.Store.NO));
+        page.add(new StringField("path", "/a.txt", Field.Store.YES));
+        page.add(new LongField("modified", 100, Field.Store.YES));
+        writer.addDocument(page);
+        writer.close();
+
+        DirectoryReader reader = DirectoryReader.open(dir);
+        try {
+            IndexCatalog catalog = new IndexCatalog();
+            catalog.put("/stale.txt", 1, 1);
+            catalog.load(reader, false);
+            assertEquals(2, catalog.size());
+            assertFalse(catalog.contains("/stale.txt"));
+            assertFalse(catalog.contains("/c.txt"));
+            assertEquals(0, catalog.check("/a.txt", 100));
+            assertEquals(2, catalog.getPages("/a.txt"));
+            assertEquals(-1, catalog.getPages("/b.txt"));
+
+            catalog.load(reader, true);
+            assertEquals(1, catalog.check("/a.txt", 100));
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static Document meta(String path, long modified, int pages) {
+        Document doc = new Document();
+        doc.add(new StringField("id", path + ":meta", Field.Store.NO));
+        doc.add(new StringField("path", path, Field.Store.YES));
+        doc.add(new LongField("modified", modified, Field.Store.YES));
+        if(pages != -1) {
+            doc.add(new IntField("pages", pages, Field.Store.YES));
+        }
+        return doc;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2014 Dracode Software.
+ *
+ * This file is part of AIS.
+ *
+ * AIS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * AIS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AIS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.dracode.ais.indexer;
+
+import org.apache.lucene.analysis.core.SimpleAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class PageCollectorTest {
+    /** The pages that contain the word "match" */
+    private static final int[] MATCHES = {1, 3, 4, 8, 9};
+    private static final int PAGES = 10;
+
+    private RAMDirectory dir;
+    private DirectoryReader reader;
+    private IndexSearcher searcher;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = new RAMDirectory();
+        IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_47,
+                new SimpleAnalyzer(Version.LUCENE_47));
+        IndexWriter writer = new IndexWriter(dir, iwc);
+        int next = 0;
+        for(int page = 0; page < PAGES; page++) {
+            boolean match = next < MATCHES.length && MATCHES[next] == page;
+            if(match) {
+                next++;
+            }
+            Document doc = new Document();
+            doc.add(new TextField("text", match ? "a match" : "nothing", Field.Store.NO));
+            doc.add(new IntField("page", page, Field.Store.YES));
+            doc.add(new NumericDocValuesField("page", page));
+            writer.addDocument(doc);
+            // Spreads the pages over several segments
+            if(page % 3 == 2) {
+                writer.commit();
+            }
+        }
+        writer.close();
+        reader = DirectoryReader.open(dir);
+        searcher = new IndexSearcher(reader);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        reader.close();
+        dir.close();
+    }
+
+    @Test
+    public void forwardSetsStartAtPageAndWrap() throws IOException {
+        assertArrayEquals(new int[] {3, 4}, select(2, 2, 0));
+        assertArrayEquals(new int[] {8, 9}, select(2, 2, 1));
+        // Matches before the page follow the last page, and no match is repeated
+        assertArrayEquals(new int[] {1}, select(2, 2, 2));
+        assertArrayEquals(new int[0], select(2, 2, 3));
+        // A match on the start page comes first
+        assertArrayEquals(new int[] {4, 8, 9}, select(4, 3, 0));
+    }
+
+    @Test
+    public void backwardSetsContainEveryMatchBeforePage() throws IOException {
+        assertArrayEquals(new int[] {3, 1}, select(4, 2, -1));
+        // Set -n holds n * maxResults matches, wrapping around to the end of the file
+        assertArrayEquals(new int[] {3, 1, 9, 8}, select(4, 2, -2));
+        assertArrayEquals(new int[] {3, 1, 9, 8, 4}, select(4, 2, -3));
+    }
+
+    @Test
+    public void countsMatchesThatAreNotKept() throws IOException {
+        PageCollector collector = new PageCollector(0, 1, 0);
+        searcher.search(new TermQuery(new Term("text", "match")), collector);
+        assertEquals(MATCHES.length, collector.getTotalHits());
+        assertEquals(1, collector.getHits().length);
+    }
+
+    @Test
+    public void collectsEveryPageInOrder() throws IOException {
+        assertArrayEquals(MATCHES, select(0, Integer.MAX_VALUE, 0));
+    }
+
+    private int[] select(int page, int maxResults, int set) throws IOException {
+        PageCollector collector = new PageCollector(page, maxResults, set);
+        searcher.search(new TermQuery(new Term("text", "match")), collector);
+        ScoreDoc[] hits = collector.getHits();
+        int[] pages = new int[hits.length];
+        for(int i = 0; i < hits.length; i++) {
+            pages[i] = Integer.parseInt(searcher.doc(hits[i].doc).get("page"));
+        }
+        return pages;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Dracode Software.
+ *
+ * This file is part of AIS.
+ *
+ * AIS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * AIS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AIS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.dracode.ais.indexer;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class ResultCacheTest {
+
+    @Test
+    public void keysDependOnEveryPart() {
+        assertEquals(ResultCache.key("a", 1, Arrays.asList("x", "y")),
+                ResultCache.key("a", 1, Arrays.asList("x", "y")));
+        assertFalse(ResultCache.key("ab", "c").equals(ResultCache.key("a", "bc")));
+        assertFalse(ResultCache.key(Arrays.asList("x", "y"))
+                .equals(ResultCache.key(Arrays.asList("x"), "y")));
+    }
+
+    @Test
+    public void countsHitsAndMisses() {
+        ResultCache cache = new ResultCache(100);
+        assertNull(cache.get(1, "a"));
+        cache.put(1, "a", "result", 10);
+        assertEquals("result", cache.get(1, "a"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void newerGenerationDropsEveryResult() {
+        ResultCache cache = new ResultCache(100);
+        cache.put(1, "a", "old", 10);
+        assertNull(cache.get(2, "a"));
+        // Results from an older snapshot are neither cached nor returned
+        cache.put(1, "b", "older", 10);
+        assertNull(cache.get(1, "b"));
+        assertNull(cache.get(2, "b"));
+        cache.put(2, "a", "new", 10);
+        assertEquals("new", cache.get(2, "a"));
+        assertNull(cache.get(1, "a"));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedOverByteLimit() {
+        ResultCache cache = new ResultCache(30);
+        cache.put(1, "a", "a", 10);
+        cache.put(1, "b", "b", 10);
+        cache.put(1, "c", "c", 10);
+        cache.get(1, "a");
+        cache.put(1, "d", "d", 10);
+        assertEquals("a", cache.get(1, "a"));
+        assertNull(cache.get(1, "b"));
+        assertEquals("c", cache.get(1, "c"));
+        assertEquals("d", cache.get(1, "d"));
+        // Larger than the whole cache
+        cache.put(1, "e", "e", 31);
+        assertNull(cache.get(1, "e"));
+        assertEquals("d", cache.get(1, "d"));
+    }
+
+    @Test
+    public void replacingResultReleasesItsBytes() {
+        ResultCache cache = new ResultCache(30);
+        cache.put(1, "a", "a", 20);
+        cache.put(1, "a", "a2", 20);
+        cache.put(1, "b", "b", 10);
+        assertEquals("a2", cache.get(1, "a"));
+        assertEquals("b", cache.get(1, "b"));
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2014 Dracode Software.
+ *
+ * This file is part of AIS.
+ *
+ * AIS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * AIS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with AIS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ca.dracode.ais.service;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ParserRegistryTest {
+    /** A modification time well before anything written by the test */
+    private static final long OLD = 1000000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File cache;
+    private File root;
+    private File deep;
+    private File info;
+
+    @Before
+    public void setUp() throws IOException {
+        cache = new File(folder.getRoot(), "parsers.cache");
+        root = folder.newFolder("data");
+        File files = new File(root, "com.example.pdf/files");
+        deep = new File(files, "parsers/extra");
+        assertTrue(deep.mkdirs());
+        info = new File(files, "pdf.is");
+        write(info, "com.example.pdf.PARSE\npdf\nPDF2\n");
+        age(root);
+    }
+
+    @Test
+    public void findsServicesByExtension() {
+        ParserRegistry registry = load();
+        assertEquals("com.example.pdf.PARSE", registry.forFile(new File("/a/b.Pdf")).getName());
+        assertEquals("com.example.pdf.PARSE", registry.forFile(new File("/a/b.pdf2")).getName());
+        assertNull(registry.forFile(new File("/a/b.txt")));
+        assertNull(registry.forFile(new File("/a/pdf")));
+    }
+
+    @Test
+    public void reusesCacheWhileNothingChanged() throws IOException {
+        load();
+        write(info, "com.example.other.PARSE\npdf\n");
+        age(root);
+        // The info file and its directory look untouched, so the saved services are used
+        assertEquals("com.example.pdf.PARSE", load().forFile(new File("b.pdf")).getName());
+    }
+
+    @Test
+    public void searchesAgainWhenInfoFileChanges() throws IOException {
+        load();
+        write(info, "com.example.other.PARSE\npdf\n");
+        assertEquals("com.example.other.PARSE", load().forFile(new File("b.pdf")).getName());
+    }
+
+    @Test
+    public void reusesCacheWhenUnrelatedDirectoryChanges() throws IOException {
+        load();
+        write(info, "com.example.other.PARSE\npdf\n");
+        age(root);
+        write(new File(deep, "cache.tmp"), "");
+        assertEquals("com.example.pdf.PARSE", load().forFile(new File("b.pdf")).getName());
+    }
+
+    @Test
+    public void reusesCacheWhenIndexDirectoryChanges() throws IOException {
+        load();
+        write(info, "com.example.other.PARSE\npdf\n");
+        age(root);
+        File bulk = new File(root, "ca.dracode.ais.bulk");
+        assertTrue(bulk.mkdir());
+        write(new File(bulk, "segments.gen"), "");
+        assertEquals("com.example.pdf.PARSE", load().forFile(new File("b.pdf")).getName());
+    }
+
+    @Test
+    public void searchesAgainWhenPackageDirectoryChanges() throws IOException {
+        load();
+        write(info, "com.example.other.PARSE\npdf\n");
+        age(root);
+        assertTrue(new File(root, "com.example.pdf/cache").mkdir());
+        assertEquals("com.example.other.PARSE", load().forFile(new File("b.pdf")).getName());
+    }
+
+    @Test
+    public void searchesAgainWithoutCache() throws IOException {
+        load();
+        write(info, "com.example.other.PARSE\npdf\n");
+        age(root);
+        assertTrue(cache.delete());
+        assertEquals("com.example.other.PARSE", load().forFile(new File("b.pdf")).getName());
+    }
+
+    private ParserRegistry load() {
+        ParserRegistry registry = new ParserRegistry(cache, root);
+        registry.load();
+        return registry;
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(contents);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Sets the modification time of a directory tree to OLD
+     */
+    private static void age(File file) {
+        File[] contents = file.listFiles();
+        if(contents != null) {
+            for(File content : contents) {
+                age(content);
+            }
+        }
+        assertTrue(file.setLastModified(OLD));
+    }
+}